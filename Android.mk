@@ -23,6 +23,11 @@ LOCAL_SRC_FILES := $(call all-java-files-under, src)
 
 LOCAL_RESOURCE_DIR := $(LOCAL_PATH)/res
 
+# Compressed payloads are extracted to /data/ota_package for update_engine to read. The
+# directory is 0770 system:cache, ACCESS_CACHE_FILESYSTEM adds the app to the cache group. The
+# platform certificate makes the app run as platform_app, which SELinux only lets write there
+# with the rules in sepolicy/. Products installing the app add that directory to
+# BOARD_PLAT_PRIVATE_SEPOLICY_DIR.
 LOCAL_CERTIFICATE := platform
 
 LOCAL_PACKAGE_NAME := SystemUpdater
@@ -42,6 +47,9 @@ LOCAL_DX_FLAGS := --multi-dex
 LOCAL_STATIC_ANDROID_LIBRARIES := \
     androidx.car_car \
     androidx.legacy_legacy-support-v4 \
-    androidx.appcompat_appcompat
+    androidx.appcompat_appcompat \
+    androidx.recyclerview_recyclerview
 
 include $(BUILD_PACKAGE)
+
+include $(call all-makefiles-under,$(LOCAL_PATH))
@@ -16,20 +16,36 @@
 package com.android.car.systemupdater;
 
 import android.content.Context;
+import android.content.SharedPreferences;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
 import android.os.storage.StorageEventListener;
 import android.os.storage.StorageManager;
 import android.os.storage.VolumeInfo;
+import android.security.NetworkSecurityPolicy;
+import android.text.Editable;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
+import android.widget.AdapterView;
+import android.widget.Button;
+import android.widget.CheckBox;
+import android.widget.EditText;
+import android.widget.Spinner;
 import android.widget.TextView;
 import android.widget.Toast;
 
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.ActionBar;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.car.widget.ListItem;
 import androidx.car.widget.ListItemAdapter;
@@ -40,10 +56,20 @@ import androidx.fragment.app.Fragment;
 
 import java.io.File;
 import java.io.FileFilter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
 
 /**
  * Display a list of files and directories.
@@ -54,16 +80,54 @@ public class DeviceListFragment extends Fragment implements UpFragment {
     private static final String UPDATE_FILE_SUFFIX = ".zip";
     private static final FileFilter UPDATE_FILE_FILTER =
             file -> !file.isHidden() && (file.isDirectory()
-                    || file.getName().toLowerCase().endsWith(UPDATE_FILE_SUFFIX));
-
+                    || hasUpdateFileSuffix(file.getName()));
+    private static final String NAVIGATION_STATE_FILE = "navigation_state";
+    private static final String PREFERENCES_NAME = "system_updater";
+    private static final String KEY_UPDATE_SERVER_URL = "update_server_url";
+    private static final String KEY_SORT_MODE = "sort_mode";
+    private static final int SUBTREE_SEARCH_MAX_DEPTH = 8;
+    // CLOSE_WRITE catches a copy finishing and a file rewritten in place.
+    private static final int FOLDER_EVENTS =
+            FileObserver.CREATE | FileObserver.CLOSE_WRITE | FileObserver.DELETE
+                    | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.DELETE_SELF
+                    | FileObserver.MOVE_SELF;
+    // Changes arriving within this delay of the first one are applied together.
+    private static final long FOLDER_CHANGE_DELAY_MS = 250;
+    // Sort keys are read first for the rows shown and this many rows after them.
+    private static final int SORT_KEY_PREFETCH = 8;
+    // Sort keys read in the background are moved into the list in batches of this many...
+    private static final int SORT_KEY_BATCH_SIZE = 32;
+    // ...or of those read within this delay, whichever comes first.
+    private static final long SORT_KEY_BATCH_MS = 100;
+
+    /** Whether the time to the first interactive list has been reported for this process. */
+    private static boolean sStartupReported = false;
 
     private final Stack<File> mFileStack = new Stack<>();
+    private final Map<File, String> mVolumeUuids = new LinkedHashMap<>();
+    private NavigationState mNavigationState;
+    private File mNavigationStateFile;
+    private String mCurrentVolumeUuid;
+    private int mLoadGeneration;
     private StorageManager mStorageManager;
     private SystemUpdater mSystemUpdater;
-    private List<File> mListItems;
+    private final FileListModel mFileListModel = new FileListModel();
     private ListItemAdapter mAdapter;
     private FileItemProvider mItemProvider;
     private TextView mCurrentPathView;
+    private EditText mFilterView;
+    private CheckBox mSubtreeView;
+    private SubtreeSearch mSubtreeSearch;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    /** The folder whose files are in {@link #mFileListModel}, null for the volumes. */
+    private File mListedFolder;
+    /** The listed folder once read from the storage, watched for changes while resumed. */
+    private File mWatchedFolder;
+    private FileObserver mFolderObserver;
+    /** Names changed in the watched folder since the last update, null to rescan all of it. */
+    private Set<String> mPendingChanges = new LinkedHashSet<>();
+    private final Runnable mApplyFolderChanges = this::applyFolderChanges;
+    private SortKeyLoader mSortKeyLoader;
 
     private final StorageEventListener mListener = new StorageEventListener() {
         @Override
@@ -90,6 +154,9 @@ public class DeviceListFragment extends Fragment implements UpFragment {
 
         Context context = getContext();
         mItemProvider = new FileItemProvider(context);
+        // The state is small and needed before the first frame, so it is read right away.
+        mNavigationStateFile = new File(context.getFilesDir(), NAVIGATION_STATE_FILE);
+        mNavigationState = NavigationState.read(mNavigationStateFile);
 
         mStorageManager = (StorageManager) context.getSystemService(Context.STORAGE_SERVICE);
         if (mStorageManager == null) {
@@ -105,6 +172,7 @@ public class DeviceListFragment extends Fragment implements UpFragment {
     public View onCreateView(@NonNull LayoutInflater inflater, ViewGroup container,
             Bundle savedInstanceState) {
         mAdapter = new ListItemAdapter(getContext(), mItemProvider);
+        mFileListModel.setAdapter(mAdapter);
         return inflater.inflate(R.layout.folder_list, container, false);
     }
 
@@ -115,6 +183,47 @@ public class DeviceListFragment extends Fragment implements UpFragment {
         folderListView.setAdapter(mAdapter);
 
         mCurrentPathView = (TextView) view.findViewById(R.id.current_path);
+
+        mFilterView = view.findViewById(R.id.filter);
+        mFilterView.addTextChangedListener(new TextWatcher() {
+            @Override
+            public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            }
+
+            @Override
+            public void onTextChanged(CharSequence s, int start, int before, int count) {
+            }
+
+            @Override
+            public void afterTextChanged(Editable s) {
+                mFileListModel.setFilter(s.toString());
+                updateSubtreeSearch();
+            }
+        });
+        mSubtreeView = view.findViewById(R.id.search_subfolders);
+        mSubtreeView.setOnCheckedChangeListener((buttonView, isChecked) -> updateSubtreeSearch());
+
+        SharedPreferences preferences =
+                getContext().getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        mFileListModel.setSortMode(
+                preferences.getInt(KEY_SORT_MODE, FileListModel.SORT_BY_NAME));
+        Spinner sortModeView = view.findViewById(R.id.sort_mode);
+        sortModeView.setSelection(mFileListModel.getSortMode());
+        sortModeView.setOnItemSelectedListener(new AdapterView.OnItemSelectedListener() {
+            @Override
+            public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                if (position == mFileListModel.getSortMode()) {
+                    return;
+                }
+                preferences.edit().putInt(KEY_SORT_MODE, position).apply();
+                mFileListModel.setSortMode(position);
+                loadSortKeys(Collections.emptyList());
+            }
+
+            @Override
+            public void onNothingSelected(AdapterView<?> parent) {
+            }
+        });
     }
 
     @Override
@@ -126,7 +235,22 @@ public class DeviceListFragment extends Fragment implements UpFragment {
         actionBar.setDisplayShowCustomEnabled(true);
         actionBar.setDisplayShowTitleEnabled(false);
 
-        showMountedVolumes();
+        Button networkUpdateButton = activity.findViewById(R.id.action_button1);
+        networkUpdateButton.setText(R.string.network_update);
+        networkUpdateButton.setOnClickListener(v -> showNetworkUpdateDialog());
+        networkUpdateButton.setVisibility(View.VISIBLE);
+
+        NavigationState.Snapshot snapshot = mNavigationState.getSnapshot();
+        if (snapshot == null || mStorageManager == null) {
+            showMountedVolumes();
+            return;
+        }
+        // Show the last listing right away and check it against the volume in the background.
+        mCurrentVolumeUuid = snapshot.mUuid;
+        setFileStack(snapshot.mVolumeRoot, snapshot.mFolder);
+        mCurrentPathView.setText(getString(R.string.path, snapshot.mFolder.getAbsolutePath()));
+        setFileList(snapshot.mFolder, snapshot.getFiles());
+        restoreFolder(snapshot.mUuid, snapshot.mVolumeRoot, snapshot.mFolder);
     }
 
     @Override
@@ -135,6 +259,14 @@ public class DeviceListFragment extends Fragment implements UpFragment {
         if (mStorageManager != null) {
             mStorageManager.registerListener(mListener);
         }
+        if (mWatchedFolder != null) {
+            // Catch up with the changes made while paused.
+            startWatching(mWatchedFolder);
+            onFolderChanged(null);
+        }
+        // The subfolder matches are dropped while paused.
+        updateSubtreeSearch();
+        loadSortKeys(Collections.emptyList());
     }
 
     @Override
@@ -143,6 +275,14 @@ public class DeviceListFragment extends Fragment implements UpFragment {
         if (mStorageManager != null) {
             mStorageManager.unregisterListener(mListener);
         }
+        AsyncTask.execute(mNavigationState.newWriter(mNavigationStateFile));
+        stopWatching();
+        // The whole folder is rescanned when resumed, drop the changes not applied yet.
+        mHandler.removeCallbacks(mApplyFolderChanges);
+        mPendingChanges = new LinkedHashSet<>();
+        cancelSubtreeSearch();
+        cancelSortKeyLoader();
+        mFileListModel.clearSubtreeEntries();
     }
 
     /** Display the mounted volumes on this device. */
@@ -150,38 +290,310 @@ public class DeviceListFragment extends Fragment implements UpFragment {
         if (mStorageManager == null) {
             return;
         }
-        final List<VolumeInfo> vols = mStorageManager.getVolumes();
-        ArrayList<File> volumes = new ArrayList<>(vols.size());
-        for (VolumeInfo vol : vols) {
-            File path = vol.getPathForUser(getActivity().getUserId());
-            if (vol.getState() == VolumeInfo.STATE_MOUNTED
-                    && vol.getType() == VolumeInfo.TYPE_PUBLIC
-                    && path != null) {
-                volumes.add(path);
+        mCurrentVolumeUuid = null;
+        mNavigationState.clearListing();
+        resetFilter();
+        unwatchFolder();
+        cancelSortKeyLoader();
+        final int generation = ++mLoadGeneration;
+        final int userId = getActivity().getUserId();
+
+        // Querying the volumes is a binder call, keep it off the main thread.
+        new AsyncTask<Void, Void, Map<File, String>>() {
+            @Override
+            protected Map<File, String> doInBackground(Void... unused) {
+                final List<VolumeInfo> vols = mStorageManager.getVolumes();
+                Map<File, String> volumes = new LinkedHashMap<>(vols.size());
+                for (VolumeInfo vol : vols) {
+                    File path = vol.getPathForUser(userId);
+                    if (vol.getState() == VolumeInfo.STATE_MOUNTED
+                            && vol.getType() == VolumeInfo.TYPE_PUBLIC
+                            && path != null) {
+                        volumes.put(path, vol.getFsUuid());
+                    }
+                }
+                return volumes;
+            }
+
+            @Override
+            protected void onPostExecute(Map<File, String> volumes) {
+                if (generation != mLoadGeneration || !isAdded()) {
+                    return;
+                }
+                mVolumeUuids.clear();
+                mVolumeUuids.putAll(volumes);
+
+                // Otherwise show all of the available volumes.
+                mCurrentPathView.setText(getString(R.string.volumes, volumes.size()));
+                setFileList(null, new ArrayList<>(volumes.keySet()));
+                onListReady();
+            }
+        }.execute();
+    }
+
+    /**
+     * Show the content of {@code folder}, or its closest existing parent, if the volume
+     * identified by {@code uuid} is still mounted at {@code volumeRoot}. Otherwise show the
+     * mounted volumes.
+     */
+    private void restoreFolder(String uuid, File volumeRoot, File folder) {
+        resetFilter();
+        unwatchFolder();
+        cancelSortKeyLoader();
+        final int generation = ++mLoadGeneration;
+        final int userId = getActivity().getUserId();
+
+        new AsyncTask<Void, Void, File[]>() {
+            private File mFolder = folder;
+
+            @Override
+            protected File[] doInBackground(Void... unused) {
+                VolumeInfo vol = mStorageManager.findVolumeByUuid(uuid);
+                if (vol == null || vol.getState() != VolumeInfo.STATE_MOUNTED
+                        || !volumeRoot.equals(vol.getPathForUser(userId))) {
+                    return null;
+                }
+                while (mFolder != null && !mFolder.equals(volumeRoot) && !mFolder.isDirectory()) {
+                    mFolder = mFolder.getParentFile();
+                }
+                return mFolder == null ? null : mFolder.listFiles(UPDATE_FILE_FILTER);
             }
+
+            @Override
+            protected void onPostExecute(File[] results) {
+                if (generation != mLoadGeneration || !isAdded()) {
+                    return;
+                }
+                if (results == null) {
+                    mFileStack.clear();
+                    showMountedVolumes();
+                    return;
+                }
+                mCurrentVolumeUuid = uuid;
+                setFileStack(volumeRoot, mFolder);
+                mCurrentPathView.setText(getString(R.string.path, mFolder.getAbsolutePath()));
+                List<File> files = Arrays.asList(results);
+                if (mFolder.equals(mListedFolder)) {
+                    // Only move the rows that changed since the snapshot was taken.
+                    mFileListModel.updateFolderEntries(FileListModel.toEntries(files, null));
+                    loadSortKeys(Collections.emptyList());
+                } else {
+                    setFileList(mFolder, files);
+                }
+                mNavigationState.setListing(uuid, volumeRoot, mFolder, files);
+                watchFolder(mFolder);
+                onListReady();
+            }
+        }.execute();
+    }
+
+    /** Set {@link #mFileStack} to the folders from {@code volumeRoot} down to {@code folder}. */
+    private void setFileStack(File volumeRoot, File folder) {
+        mFileStack.clear();
+        for (File file = folder; file != null; file = file.getParentFile()) {
+            mFileStack.add(0, file);
+            if (file.equals(volumeRoot)) {
+                break;
+            }
+        }
+    }
+
+    /** Called when a list checked against the storage is shown. */
+    private void onListReady() {
+        if (sStartupReported) {
+            return;
+        }
+        sStartupReported = true;
+        getActivity().reportFullyDrawn();
+        if (Log.isLoggable(TAG, Log.INFO)) {
+            Log.i(TAG, String.format("Interactive list shown %d ms after process start",
+                    SystemClock.elapsedRealtime() - Process.getStartElapsedRealtime()));
+        }
+    }
+
+    /** Set the list of files shown on the screen, which are in {@code folder} if not null. */
+    private void setFileList(File folder, List<File> files) {
+        mListedFolder = folder;
+        mFileListModel.setFiles(files);
+        loadSortKeys(Collections.emptyList());
+    }
+
+    /** Watch the listed {@code folder} for files added or removed while resumed. */
+    private void watchFolder(File folder) {
+        unwatchFolder();
+        mWatchedFolder = folder;
+        if (isResumed()) {
+            startWatching(folder);
+        }
+    }
+
+    /** Stop watching the listed folder and forget its pending changes. */
+    private void unwatchFolder() {
+        stopWatching();
+        mWatchedFolder = null;
+        mPendingChanges = new LinkedHashSet<>();
+        mHandler.removeCallbacks(mApplyFolderChanges);
+    }
+
+    private void startWatching(File folder) {
+        stopWatching();
+        mFolderObserver = new FileObserver(folder.getPath(), FOLDER_EVENTS) {
+            @Override
+            public void onEvent(int event, String path) {
+                // Called on the observer thread.
+                mHandler.post(() -> {
+                    if (folder.equals(mWatchedFolder)) {
+                        onFolderChanged((event & (DELETE_SELF | MOVE_SELF)) != 0 ? null : path);
+                    }
+                });
+            }
+        };
+        mFolderObserver.startWatching();
+    }
+
+    private void stopWatching() {
+        if (mFolderObserver != null) {
+            mFolderObserver.stopWatching();
+            mFolderObserver = null;
+        }
+    }
+
+    /**
+     * Record that {@code name} changed in the watched folder, or that all of it must be rescanned
+     * if null, and schedule applying the changes.
+     */
+    private void onFolderChanged(String name) {
+        boolean scheduled = mPendingChanges == null || !mPendingChanges.isEmpty();
+        if (name == null) {
+            mPendingChanges = null;
+        } else if (mPendingChanges != null) {
+            mPendingChanges.add(name);
+        }
+        if (!scheduled) {
+            mHandler.postDelayed(mApplyFolderChanges, FOLDER_CHANGE_DELAY_MS);
+        }
+    }
+
+    /** Check the changed files in the background and apply them to the list. */
+    private void applyFolderChanges() {
+        final File folder = mWatchedFolder;
+        final Set<String> names = mPendingChanges;
+        final int generation = mLoadGeneration;
+        mPendingChanges = new LinkedHashSet<>();
+        if (folder == null) {
+            return;
+        }
+
+        new AsyncTask<Void, Void, List<FileListModel.Entry>>() {
+            @Override
+            protected List<FileListModel.Entry> doInBackground(Void... unused) {
+                if (names == null) {
+                    File[] results = folder.listFiles(UPDATE_FILE_FILTER);
+                    return results == null
+                            ? null
+                            : FileListModel.toEntries(Arrays.asList(results), null);
+                }
+                List<File> present = new ArrayList<>();
+                for (String name : names) {
+                    File file = new File(folder, name);
+                    if (file.exists() && UPDATE_FILE_FILTER.accept(file)) {
+                        present.add(file);
+                    }
+                }
+                return FileListModel.toEntries(present, null);
+            }
+
+            @Override
+            protected void onPostExecute(List<FileListModel.Entry> present) {
+                if (generation != mLoadGeneration || !folder.equals(mWatchedFolder)
+                        || !isAdded()) {
+                    return;
+                }
+                if (present == null) {
+                    // The folder itself is gone.
+                    goUp();
+                    return;
+                }
+                if (names == null) {
+                    mFileListModel.updateFolderEntries(present);
+                } else {
+                    // Changed files still present are replaced too. Their sort keys may have been
+                    // read from a partial copy and must be read again.
+                    Set<File> changed = new HashSet<>();
+                    for (String name : names) {
+                        changed.add(new File(folder, name));
+                    }
+                    mFileListModel.applyFolderChanges(changed, present);
+                }
+                loadSortKeys(Collections.emptyList());
+                if (!mFileStack.empty()) {
+                    mNavigationState.setListing(mCurrentVolumeUuid, mFileStack.firstElement(),
+                            folder, mFileListModel.getFolderFiles());
+                }
+            }
+        }.execute();
+    }
+
+    /** Clear the filter and stop searching the subfolders of the previous folder. */
+    private void resetFilter() {
+        cancelSubtreeSearch();
+        if (mFilterView != null && mFilterView.length() > 0) {
+            mFilterView.setText(null);
         }
+    }
 
-        // Otherwise show all of the available volumes.
-        mCurrentPathView.setText(getString(R.string.volumes, volumes.size()));
-        setFileList(volumes);
+    /**
+     * Start searching the subfolders of the current folder if the user asked for it and typed a
+     * filter. The subfolders are only walked once, later keystrokes filter the entries found.
+     */
+    private void updateSubtreeSearch() {
+        if (mSubtreeView == null || !mSubtreeView.isChecked() || mFileStack.empty()) {
+            cancelSubtreeSearch();
+            mFileListModel.clearSubtreeEntries();
+            return;
+        }
+        if (mSubtreeSearch != null || mFileListModel.getFilter().isEmpty()) {
+            return;
+        }
+        mSubtreeSearch = new SubtreeSearch(mFileStack.peek(), mLoadGeneration);
+        // Walking the subtree can take long, don't hold up the folder listings behind it.
+        mSubtreeSearch.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
     }
 
-    /** Set the list of files shown on the screen. */
-    private void setFileList(List<File> files) {
-        mListItems = files;
-        if (mAdapter != null) {
-            mAdapter.notifyDataSetChanged();
+    private void cancelSubtreeSearch() {
+        if (mSubtreeSearch != null) {
+            mSubtreeSearch.cancel(true);
+            mSubtreeSearch = null;
         }
     }
 
     /** Handle user selection of a file. */
     private void onFileSelected(File file) {
         if (isUpdateFile(file)) {
+            unwatchFolder();
             mFileStack.clear();
             mSystemUpdater.applyUpdate(file);
+        } else if (mFileStack.empty() && mVolumeUuids.containsKey(file)) {
+            // Go back to the folder last shown on this volume.
+            String uuid = mVolumeUuids.get(file);
+            File lastPath = mNavigationState.getLastPath(uuid);
+            mFileStack.push(file);
+            mCurrentPathView.setText(getString(R.string.path, file.getAbsolutePath()));
+            if (lastPath != null
+                    && lastPath.getPath().startsWith(file.getPath() + File.separator)) {
+                restoreFolder(uuid, file, lastPath);
+            } else {
+                mCurrentVolumeUuid = uuid;
+                showFolderContent(file);
+            }
         } else if (file.isDirectory()) {
+            if (!mFileStack.empty() && !mFileStack.peek().equals(file.getParentFile())) {
+                // A folder found by the subtree search.
+                setFileStack(mFileStack.firstElement(), file);
+            } else {
+                mFileStack.push(file);
+            }
             showFolderContent(file);
-            mFileStack.push(file);
         } else {
             Toast.makeText(getContext(), R.string.invalid_file_type, Toast.LENGTH_LONG).show();
         }
@@ -214,23 +626,43 @@ public class DeviceListFragment extends Fragment implements UpFragment {
         }
 
         mCurrentPathView.setText(getString(R.string.path, folder.getAbsolutePath()));
+        resetFilter();
+        unwatchFolder();
+        cancelSortKeyLoader();
+        final int generation = ++mLoadGeneration;
 
         // Retrieve the list of files and update the displayed list.
-        new AsyncTask<File, Void, File[]>() {
+        new AsyncTask<File, Void, List<FileListModel.Entry>>() {
             @Override
-            protected File[] doInBackground(File... file) {
-                return file[0].listFiles(UPDATE_FILE_FILTER);
+            protected List<FileListModel.Entry> doInBackground(File... file) {
+                File[] results = file[0].listFiles(UPDATE_FILE_FILTER);
+                return results == null
+                        ? null
+                        : FileListModel.toEntries(Arrays.asList(results), null);
             }
 
             @Override
-            protected void onPostExecute(File[] results) {
+            protected void onPostExecute(List<FileListModel.Entry> results) {
                 super.onPostExecute(results);
+                if (generation != mLoadGeneration || !isAdded()) {
+                    return;
+                }
                 if (results == null) {
-                    results = new File[0];
+                    results = new ArrayList<>();
                     Toast.makeText(getContext(), R.string.cannot_access_storage,
                             Toast.LENGTH_LONG).show();
                 }
-                setFileList(Arrays.asList(results));
+                // Entries found in the subfolders before the listing arrived are dropped with it.
+                cancelSubtreeSearch();
+                mListedFolder = folder;
+                mFileListModel.setFolderEntries(results);
+                loadSortKeys(Collections.emptyList());
+                if (!mFileStack.empty()) {
+                    mNavigationState.setListing(mCurrentVolumeUuid, mFileStack.firstElement(),
+                            folder, mFileListModel.getFolderFiles());
+                    watchFolder(folder);
+                }
+                updateSubtreeSearch();
             }
         }.execute(folder);
     }
@@ -245,14 +677,15 @@ public class DeviceListFragment extends Fragment implements UpFragment {
 
         @Override
         public ListItem get(int position) {
-            if (position < 0 || position >= mListItems.size()) {
+            if (position < 0 || position >= mFileListModel.size()) {
                 return null;
             }
+            requestSortKeys(position);
             TextListItem item = new TextListItem(mContext);
-            File file = mListItems.get(position);
-            if (file != null) {
-                item.setTitle(file.getName());
-                item.setOnClickListener(v -> onFileSelected(file));
+            FileListModel.Entry entry = mFileListModel.get(position);
+            if (entry != null) {
+                item.setTitle(entry.mTitle);
+                item.setOnClickListener(v -> onFileSelected(entry.mFile));
             } else {
                 item.setTitle(getString(R.string.unknown_file));
             }
@@ -261,10 +694,271 @@ public class DeviceListFragment extends Fragment implements UpFragment {
 
         @Override
         public int size() {
-            return mListItems == null ? 0 : mListItems.size();
+            return mFileListModel.size();
+        }
+    }
+
+    /**
+     * Move the sort keys missing for the row at {@code position} and the rows about to be shown
+     * after it to the front of those read in the background. Only the files of the folder are
+     * sorted.
+     */
+    private void requestSortKeys(int position) {
+        int mode = mFileListModel.getSortMode();
+        if (mode == FileListModel.SORT_BY_NAME) {
+            return;
+        }
+        List<FileListModel.Entry> shown = new ArrayList<>();
+        int end = Math.min(position + SORT_KEY_PREFETCH, mFileListModel.size());
+        for (int i = position; i < end; i++) {
+            FileListModel.Entry entry = mFileListModel.get(i);
+            if (!entry.mIsDirectory && !entry.mInSubtree && !entry.hasSortKey(mode)) {
+                shown.add(entry);
+            }
+        }
+        if (shown.isEmpty()) {
+            return;
+        }
+        if (mSortKeyLoader != null && mSortKeyLoader.mMode == mode) {
+            mSortKeyLoader.prioritize(shown);
+        } else {
+            loadSortKeys(shown);
+        }
+    }
+
+    /**
+     * Read in the background the sort keys missing for the files of the folder, starting with
+     * {@code first}. Called whenever the files or the sort mode change.
+     */
+    private void loadSortKeys(List<FileListModel.Entry> first) {
+        int mode = mFileListModel.getSortMode();
+        if (mSortKeyLoader != null && (mSortKeyLoader.mMode != mode
+                || mSortKeyLoader.mGeneration != mLoadGeneration)) {
+            cancelSortKeyLoader();
+        }
+        if (mode == FileListModel.SORT_BY_NAME) {
+            return;
+        }
+        List<FileListModel.Entry> missing = mFileListModel.getEntriesWithoutSortKey(mode);
+        if (mSortKeyLoader == null) {
+            if (missing.isEmpty()) {
+                return;
+            }
+            mSortKeyLoader = new SortKeyLoader(mode, mLoadGeneration);
+            mSortKeyLoader.add(missing);
+            mSortKeyLoader.prioritize(first);
+            mSortKeyLoader.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        } else {
+            mSortKeyLoader.add(missing);
+            mSortKeyLoader.prioritize(first);
         }
     }
 
+    private void cancelSortKeyLoader() {
+        if (mSortKeyLoader != null) {
+            mSortKeyLoader.cancel(true);
+            mSortKeyLoader = null;
+        }
+    }
+
+    /** Sort keys read in the background, moved into the list together. */
+    private static class SortKeyBatch {
+        final List<FileListModel.Entry> mEntries = new ArrayList<>();
+        long[] mKeys = new long[SORT_KEY_BATCH_SIZE];
+
+        void add(FileListModel.Entry entry, long key) {
+            if (mEntries.size() == mKeys.length) {
+                mKeys = Arrays.copyOf(mKeys, mKeys.length * 2);
+            }
+            mKeys[mEntries.size()] = key;
+            mEntries.add(entry);
+        }
+    }
+
+    /**
+     * Reads at low priority the sort keys of a queue of entries and moves them to their sorted
+     * position in batches. Entries can be queued, or moved to the front of the queue for the
+     * rows being shown, while it runs.
+     */
+    private class SortKeyLoader extends AsyncTask<Void, SortKeyBatch, Void> {
+        private final int mMode;
+        private final int mGeneration;
+        private final BlockingDeque<FileListModel.Entry> mQueue = new LinkedBlockingDeque<>();
+        /** The entries ever queued, only used on the main thread. */
+        private final Set<FileListModel.Entry> mQueued = new HashSet<>();
+
+        SortKeyLoader(int mode, int generation) {
+            mMode = mode;
+            mGeneration = generation;
+        }
+
+        /** Queue the {@code entries} not queued yet. */
+        void add(List<FileListModel.Entry> entries) {
+            for (FileListModel.Entry entry : entries) {
+                if (mQueued.add(entry)) {
+                    mQueue.addLast(entry);
+                }
+            }
+        }
+
+        /** Read the keys of {@code entries} next, unless they are already read or being read. */
+        void prioritize(List<FileListModel.Entry> entries) {
+            for (int i = entries.size() - 1; i >= 0; i--) {
+                FileListModel.Entry entry = entries.get(i);
+                if (mQueue.remove(entry) || mQueued.add(entry)) {
+                    mQueue.addFirst(entry);
+                }
+            }
+        }
+
+        @Override
+        protected Void doInBackground(Void... unused) {
+            // Keep the disk reads of a large folder from competing with the rows being shown.
+            Process.setThreadPriority(
+                    Process.THREAD_PRIORITY_BACKGROUND + Process.THREAD_PRIORITY_LESS_FAVORABLE);
+            try {
+                SortKeyBatch batch = new SortKeyBatch();
+                long batchStart = SystemClock.elapsedRealtime();
+                FileListModel.Entry entry;
+                while (!isCancelled() && (entry = mQueue.pollFirst()) != null) {
+                    batch.add(entry, entry.readSortKey(mMode));
+                    if (batch.mEntries.size() >= SORT_KEY_BATCH_SIZE || mQueue.isEmpty()
+                            || SystemClock.elapsedRealtime() - batchStart >= SORT_KEY_BATCH_MS) {
+                        publishProgress(batch);
+                        batch = new SortKeyBatch();
+                        batchStart = SystemClock.elapsedRealtime();
+                    }
+                }
+            } finally {
+                // The thread is pooled and runs other tasks afterwards.
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+            }
+            return null;
+        }
+
+        @Override
+        protected void onProgressUpdate(SortKeyBatch... batches) {
+            if (isCancelled() || mGeneration != mLoadGeneration || !isAdded()) {
+                return;
+            }
+            for (SortKeyBatch batch : batches) {
+                mFileListModel.setSortKeys(mMode, batch.mEntries, batch.mKeys);
+            }
+        }
+
+        @Override
+        protected void onPostExecute(Void unused) {
+            if (mSortKeyLoader != this) {
+                return;
+            }
+            mSortKeyLoader = null;
+            // Entries queued after the last one was read are left to a new loader.
+            if (!mQueue.isEmpty() && isAdded()) {
+                loadSortKeys(new ArrayList<>(mQueue));
+            }
+        }
+    }
+
+    /**
+     * Walks the subfolders of a folder, publishing the files found in each of them. They are
+     * published as arrays, a generic progress type makes publishProgress an unchecked call.
+     */
+    private class SubtreeSearch extends AsyncTask<Void, FileListModel.Entry[], Void> {
+        private final File mFolder;
+        private final int mGeneration;
+
+        SubtreeSearch(File folder, int generation) {
+            mFolder = folder;
+            mGeneration = generation;
+        }
+
+        @Override
+        protected Void doInBackground(Void... unused) {
+            Deque<File> folders = new ArrayDeque<>();
+            Deque<Integer> depths = new ArrayDeque<>();
+            folders.add(mFolder);
+            depths.add(0);
+            while (!folders.isEmpty() && !isCancelled()) {
+                File folder = folders.poll();
+                int depth = depths.poll();
+                File[] files = folder.listFiles(UPDATE_FILE_FILTER);
+                if (files == null) {
+                    continue;
+                }
+                List<File> found = new ArrayList<>();
+                for (File file : files) {
+                    // The files of the folder itself are already listed.
+                    if (depth > 0) {
+                        found.add(file);
+                    }
+                    if (depth < SUBTREE_SEARCH_MAX_DEPTH && file.isDirectory()) {
+                        folders.add(file);
+                        depths.add(depth + 1);
+                    }
+                }
+                if (!found.isEmpty()) {
+                    publishProgress(FileListModel.toEntries(found, mFolder)
+                            .toArray(new FileListModel.Entry[0]));
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void onProgressUpdate(FileListModel.Entry[]... entries) {
+            // Batches published before the search was cancelled are still delivered.
+            if (isCancelled() || mGeneration != mLoadGeneration || !isAdded()) {
+                return;
+            }
+            mFileListModel.addSubtreeEntries(Arrays.asList(entries[0]));
+        }
+    }
+
+    /** Ask for the URL of an update on a local update server and install it. */
+    private void showNetworkUpdateDialog() {
+        Context context = getContext();
+        SharedPreferences preferences =
+                context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+        EditText urlView = new EditText(context);
+        urlView.setHint(R.string.network_update_hint);
+        urlView.setSingleLine();
+        urlView.setText(preferences.getString(KEY_UPDATE_SERVER_URL, null));
+
+        new AlertDialog.Builder(context)
+                .setTitle(R.string.network_update_title)
+                .setView(urlView)
+                .setPositiveButton(R.string.install_now, (dialog, which) -> {
+                    String url = urlView.getText().toString().trim();
+                    if (!url.startsWith("http://") && !url.startsWith("https://")) {
+                        Toast.makeText(context, R.string.invalid_update_url, Toast.LENGTH_LONG)
+                                .show();
+                        return;
+                    }
+                    String host = Uri.parse(url).getHost();
+                    if (url.startsWith("http://") && !NetworkSecurityPolicy.getInstance()
+                            .isCleartextTrafficPermitted(host)) {
+                        // Checked here rather than failing the verification with a generic error.
+                        Toast.makeText(context, R.string.cleartext_not_permitted,
+                                Toast.LENGTH_LONG).show();
+                        return;
+                    }
+                    preferences.edit().putString(KEY_UPDATE_SERVER_URL, url).apply();
+                    unwatchFolder();
+                    mFileStack.clear();
+                    mSystemUpdater.applyUpdate(url);
+                })
+                .setNegativeButton(android.R.string.cancel, null)
+                .show();
+    }
+
+    /** Returns true if {@code name} ends with the update file suffix, ignoring case. */
+    private static boolean hasUpdateFileSuffix(String name) {
+        int start = name.length() - UPDATE_FILE_SUFFIX.length();
+        return start >= 0
+                && name.regionMatches(/* ignoreCase= */ true, start, UPDATE_FILE_SUFFIX, 0,
+                        UPDATE_FILE_SUFFIX.length());
+    }
+
     /** Returns true if a file is considered to contain a system update. */
     private static boolean isUpdateFile(File file) {
         return file.getName().endsWith(UPDATE_FILE_SUFFIX);
@@ -274,5 +968,8 @@ public class DeviceListFragment extends Fragment implements UpFragment {
     interface SystemUpdater {
         /** Attempt to apply an update to the device contained in the {@code file}. */
         void applyUpdate(File file);
+
+        /** Attempt to apply an update served by an update server at {@code url}. */
+        void applyUpdate(String url);
     }
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.systemupdater;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.app.NotificationManager;
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.PowerManager;
+import android.os.UpdateEngine;
+import android.os.UpdateEngineCallback;
+
+/** The {@link UpdateServices} of the device. */
+class DeviceUpdateServices implements UpdateServices {
+    private final UpdateEngine mUpdateEngine = new UpdateEngine();
+    private final PowerManager mPowerManager;
+    private final NotificationManager mNotificationManager;
+
+    DeviceUpdateServices(Context context) {
+        mPowerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        mNotificationManager = context.getSystemService(NotificationManager.class);
+    }
+
+    @Override
+    public void bind(UpdateEngineCallback callback, Handler handler) {
+        mUpdateEngine.bind(callback, handler);
+    }
+
+    @Override
+    public void applyPayload(String url, long offset, long size, String[] properties) {
+        mUpdateEngine.applyPayload(url, offset, size, properties);
+    }
+
+    @Override
+    public void reboot(String reason) {
+        mPowerManager.reboot(reason);
+    }
+
+    @Override
+    public void deleteStagedPayload() {
+        AsyncTask.execute(UpdateParser::deleteStagedPayload);
+    }
+
+    @Override
+    public void createNotificationChannel(NotificationChannel channel) {
+        mNotificationManager.createNotificationChannel(channel);
+    }
+
+    @Override
+    public void postNotification(int id, Notification notification) {
+        mNotificationManager.notify(id, notification);
+    }
+
+    @Override
+    public void cancelNotification(int id) {
+        mNotificationManager.cancel(id);
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.systemupdater;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+
+import androidx.recyclerview.widget.RecyclerView;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * The files of a folder, optionally followed by files found in its subfolders, narrowed down by
+ * a filter on their names. The files of the folder are sorted with the folders first.
+ */
+class FileListModel {
+
+    /** Sort by name. */
+    static final int SORT_BY_NAME = 0;
+    /** Sort by file size, largest first. */
+    static final int SORT_BY_SIZE = 1;
+    /** Sort by modification time, newest first. */
+    static final int SORT_BY_MODIFIED = 2;
+    /** Sort by the build time of the update in the file, newest first. */
+    static final int SORT_BY_BUILD_DATE = 3;
+
+    private static final String UPDATE_FILE_SUFFIX = ".zip";
+    private static final String METADATA_FILE = "META-INF/com/android/metadata";
+    private static final String POST_TIMESTAMP = "post-timestamp=";
+
+    private final List<Entry> mFolderEntries = new ArrayList<>();
+    private final List<Entry> mSubtreeEntries = new ArrayList<>();
+    private final List<Entry> mShown = new ArrayList<>();
+    private String mFilter = "";
+    private int mSortMode = SORT_BY_NAME;
+    private Comparator<Entry> mComparator = newComparator(SORT_BY_NAME);
+    private RecyclerView.Adapter<?> mAdapter;
+
+    /** Set the adapter notified when the shown entries change. */
+    void setAdapter(@Nullable RecyclerView.Adapter<?> adapter) {
+        mAdapter = adapter;
+    }
+
+    /** Replace the files of the folder, dropping any subtree entries. */
+    void setFolderEntries(@NonNull List<Entry> entries) {
+        mFolderEntries.clear();
+        mFolderEntries.addAll(entries);
+        Collections.sort(mFolderEntries, mComparator);
+        mSubtreeEntries.clear();
+        refilter();
+    }
+
+    /** Replace the files of the folder, dropping any subtree entries. */
+    void setFiles(@NonNull List<File> files) {
+        setFolderEntries(toEntries(files, null));
+    }
+
+    /**
+     * Update the files of the folder to {@code entries}, notifying the adapter only of the rows
+     * removed and inserted.
+     */
+    void updateFolderEntries(@NonNull List<Entry> entries) {
+        Set<File> current = new HashSet<>();
+        for (Entry entry : mFolderEntries) {
+            current.add(entry.mFile);
+        }
+        Set<File> present = new HashSet<>();
+        List<Entry> added = new ArrayList<>();
+        for (Entry entry : entries) {
+            present.add(entry.mFile);
+            if (!current.contains(entry.mFile)) {
+                added.add(entry);
+            }
+        }
+        current.removeAll(present);
+        applyFolderChanges(current, added);
+    }
+
+    /**
+     * Remove the {@code removed} files from the folder and add the {@code added} entries to it,
+     * notifying the adapter only of the rows removed and inserted. A file in both is replaced by
+     * its new entry.
+     */
+    void applyFolderChanges(@NonNull Collection<File> removed, @NonNull List<Entry> added) {
+        if (!removed.isEmpty()) {
+            for (int i = mFolderEntries.size() - 1; i >= 0; i--) {
+                Entry entry = mFolderEntries.get(i);
+                if (!removed.contains(entry.mFile)) {
+                    continue;
+                }
+                mFolderEntries.remove(i);
+                int position = mShown.indexOf(entry);
+                if (position >= 0) {
+                    mShown.remove(position);
+                    if (mAdapter != null) {
+                        mAdapter.notifyItemRemoved(position);
+                    }
+                }
+            }
+        }
+        for (Entry entry : added) {
+            insertFolderEntry(entry);
+        }
+    }
+
+    /**
+     * Set how the files of the folder are sorted. Entries whose key isn't loaded yet follow the
+     * others, sorted by name.
+     */
+    void setSortMode(int mode) {
+        if (mode == mSortMode) {
+            return;
+        }
+        mSortMode = mode;
+        mComparator = newComparator(mode);
+        Collections.sort(mFolderEntries, mComparator);
+        refilter();
+    }
+
+    /** Returns how the files of the folder are sorted. */
+    int getSortMode() {
+        return mSortMode;
+    }
+
+    /**
+     * Set the sort keys read for {@code entries} with {@link Entry#readSortKey} and move them to
+     * their sorted position.
+     */
+    void setSortKeys(int mode, @NonNull List<Entry> entries, @NonNull long[] keys) {
+        for (int i = 0; i < entries.size(); i++) {
+            Entry entry = entries.get(i);
+            entry.setSortKey(mode, keys[i]);
+            int index = mFolderEntries.indexOf(entry);
+            if (index < 0) {
+                continue;
+            }
+            mFolderEntries.remove(index);
+            mFolderEntries.add(findPosition(mFolderEntries, mFolderEntries.size(), entry), entry);
+
+            int from = mShown.indexOf(entry);
+            if (from < 0) {
+                continue;
+            }
+            mShown.remove(from);
+            int to = findPosition(mShown, getShownFolderCount(), entry);
+            mShown.add(to, entry);
+            if (mAdapter != null && from != to) {
+                mAdapter.notifyItemMoved(from, to);
+            }
+        }
+    }
+
+    private void insertFolderEntry(Entry entry) {
+        mFolderEntries.add(findPosition(mFolderEntries, mFolderEntries.size(), entry), entry);
+        if (!entry.matches(mFilter)) {
+            return;
+        }
+        int position = findPosition(mShown, getShownFolderCount(), entry);
+        mShown.add(position, entry);
+        if (mAdapter != null) {
+            mAdapter.notifyItemInserted(position);
+        }
+    }
+
+    /** Returns the number of entries shown from the folder, which precede the subtree entries. */
+    private int getShownFolderCount() {
+        int low = 0;
+        int high = mShown.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (mShown.get(mid).mInSubtree) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /** Returns where {@code entry} goes among the first {@code count} sorted {@code entries}. */
+    private int findPosition(List<Entry> entries, int count, Entry entry) {
+        int position = Collections.binarySearch(entries.subList(0, count), entry, mComparator);
+        return position < 0 ? -position - 1 : position;
+    }
+
+    /** Append entries found in the subfolders, shown only while a filter is set. */
+    void addSubtreeEntries(@NonNull List<Entry> entries) {
+        mSubtreeEntries.addAll(entries);
+        if (mFilter.isEmpty()) {
+            return;
+        }
+        int start = mShown.size();
+        for (Entry entry : entries) {
+            if (entry.matches(mFilter)) {
+                mShown.add(entry);
+            }
+        }
+        if (mAdapter != null && mShown.size() > start) {
+            mAdapter.notifyItemRangeInserted(start, mShown.size() - start);
+        }
+    }
+
+    /** Drop the entries found in the subfolders. */
+    void clearSubtreeEntries() {
+        if (mSubtreeEntries.isEmpty()) {
+            return;
+        }
+        mSubtreeEntries.clear();
+        refilter();
+    }
+
+    /**
+     * Only show the entries containing {@code query} in their name, ignoring case. When the new
+     * query contains the previous one only the entries currently shown are checked.
+     */
+    void setFilter(@NonNull String query) {
+        String filter = query.toLowerCase(Locale.ROOT);
+        if (filter.equals(mFilter)) {
+            return;
+        }
+        boolean narrowing = !mFilter.isEmpty() && filter.contains(mFilter);
+        mFilter = filter;
+        if (!narrowing) {
+            refilter();
+            return;
+        }
+        int kept = 0;
+        for (int i = 0; i < mShown.size(); i++) {
+            Entry entry = mShown.get(i);
+            if (entry.matches(filter)) {
+                mShown.set(kept++, entry);
+            }
+        }
+        mShown.subList(kept, mShown.size()).clear();
+        notifyChanged();
+    }
+
+    /** Returns the filter currently applied, lower-cased. */
+    @NonNull
+    String getFilter() {
+        return mFilter;
+    }
+
+    /** Returns the number of entries shown. */
+    int size() {
+        return mShown.size();
+    }
+
+    /** Returns the entry shown at {@code position}. */
+    Entry get(int position) {
+        return mShown.get(position);
+    }
+
+    /** Returns the files of the folder, ignoring the filter. */
+    @NonNull
+    List<File> getFolderFiles() {
+        List<File> files = new ArrayList<>(mFolderEntries.size());
+        for (Entry entry : mFolderEntries) {
+            files.add(entry.mFile);
+        }
+        return files;
+    }
+
+    /** Returns the files of the folder whose key to sort them with {@code mode} isn't loaded. */
+    @NonNull
+    List<Entry> getEntriesWithoutSortKey(int mode) {
+        List<Entry> entries = new ArrayList<>();
+        for (Entry entry : mFolderEntries) {
+            if (!entry.mIsDirectory && !entry.hasSortKey(mode)) {
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private void refilter() {
+        mShown.clear();
+        for (Entry entry : mFolderEntries) {
+            if (entry.matches(mFilter)) {
+                mShown.add(entry);
+            }
+        }
+        if (!mFilter.isEmpty()) {
+            for (Entry entry : mSubtreeEntries) {
+                if (entry.matches(mFilter)) {
+                    mShown.add(entry);
+                }
+            }
+        }
+        notifyChanged();
+    }
+
+    private void notifyChanged() {
+        if (mAdapter != null) {
+            mAdapter.notifyDataSetChanged();
+        }
+    }
+
+    /**
+     * Returns the order of entries for the sort {@code mode}: folders first by name, then files
+     * with a loaded key, then the remaining files by name.
+     */
+    private static Comparator<Entry> newComparator(int mode) {
+        return (a, b) -> {
+            if (a.mIsDirectory != b.mIsDirectory) {
+                return a.mIsDirectory ? -1 : 1;
+            }
+            if (!a.mIsDirectory && mode != SORT_BY_NAME) {
+                boolean aLoaded = a.hasSortKey(mode);
+                boolean bLoaded = b.hasSortKey(mode);
+                if (aLoaded != bLoaded) {
+                    return aLoaded ? -1 : 1;
+                }
+                if (aLoaded) {
+                    int result = Long.compare(b.getSortKey(mode), a.getSortKey(mode));
+                    if (result != 0) {
+                        return result;
+                    }
+                }
+            }
+            int result = a.mLowerName.compareTo(b.mLowerName);
+            return result != 0 ? result : a.mFile.compareTo(b.mFile);
+        };
+    }
+
+    /**
+     * Create the entries for {@code files}. Entries in a subfolder of {@code folder} are titled
+     * with their path relative to it.
+     */
+    @NonNull
+    static List<Entry> toEntries(@NonNull List<File> files, @Nullable File folder) {
+        List<Entry> entries = new ArrayList<>(files.size());
+        for (File file : files) {
+            entries.add(new Entry(file, folder));
+        }
+        return entries;
+    }
+
+    /**
+     * A file shown in the list with its lower-cased name precomputed for filtering. The keys
+     * needing a disk access to sort it are read on demand, off the main thread.
+     */
+    static class Entry {
+        final File mFile;
+        final String mTitle;
+        final String mLowerName;
+        final boolean mInSubtree;
+        // Only folders and update files are listed, so the name tells them apart without a stat.
+        final boolean mIsDirectory;
+        private boolean mSizeLoaded;
+        private long mSize;
+        private boolean mModifiedLoaded;
+        private long mModified;
+        private boolean mBuildDateLoaded;
+        private long mBuildDate;
+
+        Entry(@NonNull File file, @Nullable File folder) {
+            mFile = file;
+            String name = file.getName();
+            mTitle = folder == null
+                    ? name
+                    : file.getPath().substring(folder.getPath().length() + 1);
+            mLowerName = name.toLowerCase(Locale.ROOT);
+            mInSubtree = folder != null;
+            mIsDirectory = !mLowerName.endsWith(UPDATE_FILE_SUFFIX);
+        }
+
+        boolean matches(String filter) {
+            return filter.isEmpty() || mLowerName.contains(filter);
+        }
+
+        /** Returns true if the key to sort this entry with {@code mode} is loaded. */
+        boolean hasSortKey(int mode) {
+            switch (mode) {
+                case SORT_BY_SIZE:
+                    return mSizeLoaded;
+                case SORT_BY_MODIFIED:
+                    return mModifiedLoaded;
+                case SORT_BY_BUILD_DATE:
+                    return mBuildDateLoaded;
+                default:
+                    return true;
+            }
+        }
+
+        private long getSortKey(int mode) {
+            switch (mode) {
+                case SORT_BY_SIZE:
+                    return mSize;
+                case SORT_BY_MODIFIED:
+                    return mModified;
+                case SORT_BY_BUILD_DATE:
+                    return mBuildDate;
+                default:
+                    return 0;
+            }
+        }
+
+        /**
+         * Returns the key to sort this entry with {@code mode}. This accesses the disk and must
+         * not be called on the main thread.
+         */
+        long readSortKey(int mode) {
+            switch (mode) {
+                case SORT_BY_SIZE:
+                    return mFile.length();
+                case SORT_BY_MODIFIED:
+                    return mFile.lastModified();
+                case SORT_BY_BUILD_DATE:
+                    return readBuildDate(mFile);
+                default:
+                    return 0;
+            }
+        }
+
+        private void setSortKey(int mode, long key) {
+            switch (mode) {
+                case SORT_BY_SIZE:
+                    mSize = key;
+                    mSizeLoaded = true;
+                    break;
+                case SORT_BY_MODIFIED:
+                    mModified = key;
+                    mModifiedLoaded = true;
+                    break;
+                case SORT_BY_BUILD_DATE:
+                    mBuildDate = key;
+                    mBuildDateLoaded = true;
+                    break;
+            }
+        }
+
+        /** Returns the post-timestamp of the update in {@code file}, or -1 if unknown. */
+        private static long readBuildDate(File file) {
+            try (ZipFile zipFile = new ZipFile(file)) {
+                ZipEntry metadata = zipFile.getEntry(METADATA_FILE);
+                if (metadata == null) {
+                    return -1;
+                }
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                        zipFile.getInputStream(metadata), StandardCharsets.UTF_8))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (line.startsWith(POST_TIMESTAMP)) {
+                            return Long.parseLong(line.substring(POST_TIMESTAMP.length()).trim());
+                        }
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // Sorted with the files without a build date.
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.systemupdater;
+
+import android.annotation.NonNull;
+import android.util.Log;
+
+import com.android.internal.util.Preconditions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Parse an A/B update zip file served over HTTP, reading only the parts of the zip needed to
+ * locate the payload so update_engine can stream it from the server.
+ */
+class HttpUpdateParser {
+
+    private static final String TAG = "HttpUpdateParser";
+    private static final String PAYLOAD_BIN_FILE = "payload.bin";
+    private static final String PAYLOAD_PROPERTIES = "payload_properties.txt";
+    private static final String INDEX_FILE_PREFIX = "http_index_";
+    private static final int INDEX_VERSION = 1;
+    private static final int CONNECT_TIMEOUT_MS = 10_000;
+    private static final int READ_TIMEOUT_MS = 30_000;
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final int ZIP64_EOCD_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int ZIP64_EOCD_LOCATOR_SIZE = 20;
+    private static final int ZIP64_EOCD_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_EOCD_SIZE = 56;
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final long UINT32_MAX = 0xffffffffL;
+    private static final int UINT16_MAX = 0xffff;
+    // Far larger than the central directory of any OTA package.
+    private static final long MAX_CENTRAL_DIRECTORY_SIZE = 16 * 1024 * 1024;
+    private static final int MAX_PROPERTIES_SIZE = 64 * 1024;
+
+    private HttpUpdateParser() {
+    }
+
+    /**
+     * Locate the payload of the update zip at {@code url} and return a non null ParsedUpdate. The
+     * result is cached in {@code cacheDir} and reused while the server reports the same file.
+     */
+    @NonNull
+    static UpdateParser.ParsedUpdate parse(@NonNull String url, @NonNull File cacheDir)
+            throws IOException {
+        Preconditions.checkNotNull(url);
+
+        String validator;
+        long length;
+        HttpURLConnection connection = openConnection(url);
+        try {
+            connection.setRequestMethod("HEAD");
+            checkResponse(connection, HttpURLConnection.HTTP_OK);
+            length = connection.getContentLengthLong();
+            validator = connection.getHeaderField("ETag");
+            if (validator == null) {
+                validator = connection.getHeaderField("Last-Modified");
+            }
+        } finally {
+            connection.disconnect();
+        }
+        if (length <= 0) {
+            throw new IOException(String.format("Unknown length for %s", url));
+        }
+
+        File indexFile = new File(cacheDir,
+                INDEX_FILE_PREFIX + Integer.toHexString(url.hashCode()));
+        UpdateParser.ParsedUpdate cached = readIndex(indexFile, url, validator, length);
+        if (cached != null) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, String.format("Using cached index for %s", url));
+            }
+            return cached;
+        }
+
+        UpdateParser.ParsedUpdate update = parseZip(url, length);
+        if (validator != null) {
+            writeIndex(indexFile, url, validator, length, update);
+        }
+        return update;
+    }
+
+    /** Read the central directory of the zip and the entries needed to apply the payload. */
+    private static UpdateParser.ParsedUpdate parseZip(String url, long length) throws IOException {
+        int tailSize = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT_SIZE);
+        long tailOffset = length - tailSize;
+        ByteBuffer tail = readRange(url, tailOffset, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            throw new IOException("End of central directory not found");
+        }
+
+        long entryCount = tail.getShort(eocd + 10) & UINT16_MAX;
+        long cdSize = tail.getInt(eocd + 12) & UINT32_MAX;
+        long cdOffset = tail.getInt(eocd + 16) & UINT32_MAX;
+        if (entryCount == UINT16_MAX || cdSize == UINT32_MAX || cdOffset == UINT32_MAX) {
+            int locator = eocd - ZIP64_EOCD_LOCATOR_SIZE;
+            if (locator < 0 || tail.getInt(locator) != ZIP64_EOCD_LOCATOR_SIGNATURE) {
+                throw new IOException("Zip64 end of central directory locator not found");
+            }
+            ByteBuffer zip64Eocd = readRange(url, tail.getLong(locator + 8), ZIP64_EOCD_SIZE);
+            if (zip64Eocd.getInt(0) != ZIP64_EOCD_SIGNATURE) {
+                throw new IOException("Zip64 end of central directory not found");
+            }
+            cdSize = zip64Eocd.getLong(40);
+            cdOffset = zip64Eocd.getLong(48);
+        }
+        if (cdSize > MAX_CENTRAL_DIRECTORY_SIZE || cdOffset + cdSize > length) {
+            throw new IOException(String.format(Locale.US,
+                    "Invalid central directory size %d at %d", cdSize, cdOffset));
+        }
+
+        ByteBuffer cd = readRange(url, cdOffset, (int) cdSize);
+        CentralEntry payload = null;
+        CentralEntry properties = null;
+        int pos = 0;
+        while (pos + CENTRAL_HEADER_SIZE <= cdSize
+                && cd.getInt(pos) == CENTRAL_HEADER_SIGNATURE) {
+            CentralEntry entry = new CentralEntry(cd, pos);
+            if (PAYLOAD_BIN_FILE.equals(entry.mName)) {
+                payload = entry;
+            } else if (PAYLOAD_PROPERTIES.equals(entry.mName)) {
+                properties = entry;
+            }
+            pos = entry.mNextHeader;
+        }
+        if (payload == null || properties == null) {
+            throw new IOException(String.format("%s or %s not found in %s",
+                    PAYLOAD_BIN_FILE, PAYLOAD_PROPERTIES, url));
+        }
+        if (payload.mMethod != ZipEntry.STORED) {
+            // update_engine reads the payload straight from the server.
+            throw new IOException(String.format("Compressed %s can't be streamed",
+                    PAYLOAD_BIN_FILE));
+        }
+
+        String[] props = readProperties(url, properties);
+        return new UpdateParser.ParsedUpdate(
+                url, getDataOffset(url, payload), payload.mCompressedSize, props);
+    }
+
+    /** Returns the offset of the data of {@code entry}, which follows its local header. */
+    private static long getDataOffset(String url, CentralEntry entry) throws IOException {
+        ByteBuffer header = readRange(url, entry.mLocalHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException(String.format("No local header for %s", entry.mName));
+        }
+        int nameLength = header.getShort(26) & UINT16_MAX;
+        int extraLength = header.getShort(28) & UINT16_MAX;
+        return entry.mLocalHeaderOffset + LOCAL_HEADER_SIZE + nameLength + extraLength;
+    }
+
+    private static String[] readProperties(String url, CentralEntry entry) throws IOException {
+        if (entry.mCompressedSize > MAX_PROPERTIES_SIZE || entry.mSize > MAX_PROPERTIES_SIZE) {
+            throw new IOException(String.format("%s is too large", entry.mName));
+        }
+        ByteBuffer data =
+                readRange(url, getDataOffset(url, entry), (int) entry.mCompressedSize);
+        byte[] bytes = data.array();
+        if (entry.mMethod == ZipEntry.DEFLATED) {
+            Inflater inflater = new Inflater(/* nowrap= */ true);
+            try {
+                inflater.setInput(bytes);
+                bytes = new byte[(int) entry.mSize];
+                if (inflater.inflate(bytes) != bytes.length) {
+                    throw new IOException(String.format("Truncated %s", entry.mName));
+                }
+            } catch (DataFormatException e) {
+                throw new IOException(String.format("Corrupt %s", entry.mName), e);
+            } finally {
+                inflater.end();
+            }
+        } else if (entry.mMethod != ZipEntry.STORED) {
+            throw new IOException(String.format(Locale.US,
+                    "Unsupported compression method %d", entry.mMethod));
+        }
+        try (BufferedReader buffer = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(bytes), StandardCharsets.UTF_8))) {
+            return buffer.lines().toArray(String[]::new);
+        }
+    }
+
+    /** Returns {@code length} bytes of {@code url} starting at {@code offset}, little-endian. */
+    private static ByteBuffer readRange(String url, long offset, int length) throws IOException {
+        byte[] bytes = new byte[length];
+        try (DataInputStream in = new DataInputStream(openRange(url, offset, length))) {
+            in.readFully(bytes);
+        }
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Open a stream of the {@code length} bytes of {@code url} starting at {@code offset}. The
+     * server must support range requests.
+     */
+    @NonNull
+    static InputStream openRange(@NonNull String url, long offset, long length)
+            throws IOException {
+        HttpURLConnection connection = openConnection(url);
+        boolean success = false;
+        try {
+            connection.setRequestProperty("Range",
+                    String.format(Locale.US, "bytes=%d-%d", offset, offset + length - 1));
+            checkResponse(connection, HttpURLConnection.HTTP_PARTIAL);
+            InputStream in = new FilterInputStream(connection.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        connection.disconnect();
+                    }
+                }
+            };
+            success = true;
+            return in;
+        } finally {
+            if (!success) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private static HttpURLConnection openConnection(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        connection.setReadTimeout(READ_TIMEOUT_MS);
+        // Offsets into the zip are meaningless if the server compresses the response.
+        connection.setRequestProperty("Accept-Encoding", "identity");
+        return connection;
+    }
+
+    private static void checkResponse(HttpURLConnection connection, int expected)
+            throws IOException {
+        int code = connection.getResponseCode();
+        if (code != expected) {
+            throw new IOException(String.format(Locale.US, "HTTP %d from %s, expected %d",
+                    code, connection.getURL(), expected));
+        }
+    }
+
+    /** Returns the cached update if it was parsed from the same version of the file. */
+    private static UpdateParser.ParsedUpdate readIndex(File indexFile, String url,
+            String validator, long length) {
+        if (validator == null) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_VERSION
+                    || !url.equals(in.readUTF())
+                    || !validator.equals(in.readUTF())
+                    || in.readLong() != length) {
+                return null;
+            }
+            long offset = in.readLong();
+            long size = in.readLong();
+            String[] props = new String[in.readInt()];
+            for (int i = 0; i < props.length; i++) {
+                props[i] = in.readUTF();
+            }
+            return new UpdateParser.ParsedUpdate(url, offset, size, props);
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (IOException e) {
+            Log.w(TAG, String.format("Ignoring unreadable index %s", indexFile), e);
+            return null;
+        }
+    }
+
+    private static void writeIndex(File indexFile, String url, String validator, long length,
+            UpdateParser.ParsedUpdate update) {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(indexFile)))) {
+            out.writeInt(INDEX_VERSION);
+            out.writeUTF(url);
+            out.writeUTF(validator);
+            out.writeLong(length);
+            out.writeLong(update.mOffset);
+            out.writeLong(update.mSize);
+            out.writeInt(update.mProps.length);
+            for (String prop : update.mProps) {
+                out.writeUTF(prop);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, String.format("Failed to save index %s", indexFile), e);
+            indexFile.delete();
+        }
+    }
+
+    /** The fields of a central directory file header needed to read an entry. */
+    private static class CentralEntry {
+        final String mName;
+        final int mMethod;
+        final long mCompressedSize;
+        final long mSize;
+        final long mLocalHeaderOffset;
+        final int mNextHeader;
+
+        CentralEntry(ByteBuffer cd, int pos) throws IOException {
+            mMethod = cd.getShort(pos + 10) & UINT16_MAX;
+            long compressedSize = cd.getInt(pos + 20) & UINT32_MAX;
+            long size = cd.getInt(pos + 24) & UINT32_MAX;
+            int nameLength = cd.getShort(pos + 28) & UINT16_MAX;
+            int extraLength = cd.getShort(pos + 30) & UINT16_MAX;
+            int commentLength = cd.getShort(pos + 32) & UINT16_MAX;
+            long localHeaderOffset = cd.getInt(pos + 42) & UINT32_MAX;
+            int nameStart = pos + CENTRAL_HEADER_SIZE;
+            int extraStart = nameStart + nameLength;
+            mNextHeader = extraStart + extraLength + commentLength;
+            if (mNextHeader > cd.limit()) {
+                throw new IOException("Truncated central directory");
+            }
+            mName = new String(cd.array(), nameStart, nameLength, StandardCharsets.UTF_8);
+
+            // Values too large for the header are stored, in this order, in the zip64 extra.
+            int extra = extraStart;
+            while (extra + 4 <= extraStart + extraLength) {
+                int id = cd.getShort(extra) & UINT16_MAX;
+                int dataSize = cd.getShort(extra + 2) & UINT16_MAX;
+                if (id == ZIP64_EXTRA_ID) {
+                    int value = extra + 4;
+                    if (size == UINT32_MAX) {
+                        size = cd.getLong(value);
+                        value += 8;
+                    }
+                    if (compressedSize == UINT32_MAX) {
+                        compressedSize = cd.getLong(value);
+                        value += 8;
+                    }
+                    if (localHeaderOffset == UINT32_MAX) {
+                        localHeaderOffset = cd.getLong(value);
+                    }
+                    break;
+                }
+                extra += 4 + dataSize;
+            }
+            mCompressedSize = compressedSize;
+            mSize = size;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+    }
+}
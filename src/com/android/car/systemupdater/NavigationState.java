@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.systemupdater;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The folder last browsed on each volume and a snapshot of the last listing, persisted so the
+ * list can be shown immediately when the process is restarted.
+ */
+class NavigationState {
+
+    private static final String TAG = "NavigationState";
+    private static final int VERSION = 1;
+    private static final int MAX_VOLUMES = 16;
+
+    private final LinkedHashMap<String, String> mLastPaths =
+            new LinkedHashMap<String, String>(MAX_VOLUMES, 0.75f, /* accessOrder= */ true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                    return size() > MAX_VOLUMES;
+                }
+            };
+    private Snapshot mSnapshot;
+
+    /** Returns the last folder shown on the volume with the given {@code uuid}. */
+    @Nullable
+    File getLastPath(@Nullable String uuid) {
+        if (uuid == null) {
+            return null;
+        }
+        String path = mLastPaths.get(uuid);
+        return path == null ? null : new File(path);
+    }
+
+    /** Returns the last listing shown, or null if the volume list was shown last. */
+    @Nullable
+    Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /** Record that {@code files} were shown for {@code folder} on the given volume. */
+    void setListing(@Nullable String uuid, @NonNull File volumeRoot, @NonNull File folder,
+            @NonNull List<File> files) {
+        if (uuid == null) {
+            // Volumes without a file system UUID can't be recognized after a restart.
+            mSnapshot = null;
+            return;
+        }
+        mLastPaths.put(uuid, folder.getAbsolutePath());
+        String[] names = new String[files.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = files.get(i).getName();
+        }
+        mSnapshot = new Snapshot(uuid, volumeRoot.getAbsolutePath(), folder.getAbsolutePath(),
+                names);
+    }
+
+    /** Record that the volume list is shown. */
+    void clearListing() {
+        mSnapshot = null;
+    }
+
+    /** Read the state saved in {@code file}, returning an empty state if there is none. */
+    @NonNull
+    static NavigationState read(@NonNull File file) {
+        NavigationState state = new NavigationState();
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != VERSION) {
+                return state;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                state.mLastPaths.put(in.readUTF(), in.readUTF());
+            }
+            if (in.readBoolean()) {
+                String uuid = in.readUTF();
+                String volumeRoot = in.readUTF();
+                String folder = in.readUTF();
+                String[] names = new String[in.readInt()];
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = in.readUTF();
+                }
+                state.mSnapshot = new Snapshot(uuid, volumeRoot, folder, names);
+            }
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet.
+        } catch (IOException e) {
+            Log.w(TAG, String.format("Ignoring unreadable state %s", file), e);
+            return new NavigationState();
+        }
+        return state;
+    }
+
+    /**
+     * Returns a task writing a copy of the current state to {@code file}, which can be run on a
+     * background thread.
+     */
+    @NonNull
+    Runnable newWriter(@NonNull File file) {
+        final Map<String, String> lastPaths = new LinkedHashMap<>(mLastPaths);
+        final Snapshot snapshot = mSnapshot;
+        return () -> {
+            File tmp = new File(file.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(VERSION);
+                out.writeInt(lastPaths.size());
+                for (Map.Entry<String, String> entry : lastPaths.entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue());
+                }
+                out.writeBoolean(snapshot != null);
+                if (snapshot != null) {
+                    out.writeUTF(snapshot.mUuid);
+                    out.writeUTF(snapshot.mVolumeRoot.getAbsolutePath());
+                    out.writeUTF(snapshot.mFolder.getAbsolutePath());
+                    out.writeInt(snapshot.mNames.length);
+                    for (String name : snapshot.mNames) {
+                        out.writeUTF(name);
+                    }
+                }
+            } catch (IOException e) {
+                Log.w(TAG, String.format("Failed to save state %s", file), e);
+                tmp.delete();
+                return;
+            }
+            if (!tmp.renameTo(file)) {
+                Log.w(TAG, String.format("Failed to replace state %s", file));
+                tmp.delete();
+            }
+        };
+    }
+
+    /** The last listing shown on a volume. */
+    static class Snapshot {
+        final String mUuid;
+        final File mVolumeRoot;
+        final File mFolder;
+        final String[] mNames;
+
+        Snapshot(String uuid, String volumeRoot, String folder, String[] names) {
+            mUuid = uuid;
+            mVolumeRoot = new File(volumeRoot);
+            mFolder = new File(folder);
+            mNames = names;
+        }
+
+        /** Returns the files in the snapshot, which may no longer exist. */
+        List<File> getFiles() {
+            List<File> files = new ArrayList<>(mNames.length);
+            for (String name : mNames) {
+                files.add(new File(mFolder, name));
+            }
+            return files;
+        }
+    }
+}
@@ -19,6 +19,7 @@ import static com.android.car.systemupdater.UpdateLayoutFragment.EXTRA_RESUME_UP
 
 import android.Manifest;
 import android.content.pm.PackageManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.view.MenuItem;
 
@@ -65,6 +66,9 @@ public class SystemUpdaterActivity extends AppCompatActivity
                         .replace(R.id.device_container, fragment, FRAGMENT_TAG)
                         .commitNow();
             } else {
+                // A payload extracted before the process died and never installed is stale. Not
+                // when rejoining an installation, which may still be reading it.
+                AsyncTask.execute(UpdateParser::deleteStagedPayload);
                 DeviceListFragment fragment = new DeviceListFragment();
                 getSupportFragmentManager().beginTransaction()
                         .replace(R.id.device_container, fragment, FRAGMENT_TAG)
@@ -110,4 +114,13 @@ public class SystemUpdaterActivity extends AppCompatActivity
                 .addToBackStack(null)
                 .commit();
     }
+
+    @Override
+    public void applyUpdate(String url) {
+        UpdateLayoutFragment fragment = UpdateLayoutFragment.getInstance(url);
+        getSupportFragmentManager().beginTransaction()
+                .replace(R.id.device_container, fragment, FRAGMENT_TAG)
+                .addToBackStack(null)
+                .commit();
+    }
 }
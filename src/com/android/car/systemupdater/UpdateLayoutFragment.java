@@ -22,10 +22,11 @@ import android.app.PendingIntent;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
 import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.PowerManager;
+import android.os.SystemClock;
 import android.os.UpdateEngine;
 import android.os.UpdateEngineCallback;
 import android.text.format.Formatter;
@@ -39,6 +40,7 @@ import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.StringRes;
+import androidx.annotation.VisibleForTesting;
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.fragment.app.Fragment;
@@ -47,6 +49,8 @@ import com.android.internal.util.Preconditions;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /** Display update state and progress. */
 public class UpdateLayoutFragment extends Fragment implements UpFragment {
@@ -54,22 +58,36 @@ public class UpdateLayoutFragment extends Fragment implements UpFragment {
 
     private static final String TAG = "UpdateLayoutFragment";
     private static final String EXTRA_UPDATE_FILE = "extra_update_file";
+    private static final String EXTRA_UPDATE_URL = "extra_update_url";
     private static final int PERCENT_MAX = 100;
-    private static final String REBOOT_REASON = "reboot-ab-update";
     private static final String NOTIFICATION_CHANNEL_ID = "update";
-    private static final int NOTIFICATION_ID = 1;
+    @VisibleForTesting
+    static final int NOTIFICATION_ID = 1;
+    @VisibleForTesting
+    static final String REBOOT_REASON = "reboot-ab-update";
+
+    /** Creates the services the fragment installs with, replaced by tests. */
+    @VisibleForTesting
+    static Function<Context, UpdateServices> sUpdateServicesFactory = DeviceUpdateServices::new;
 
     private ProgressBar mProgressBar;
     private TextView mContentTitle;
     private TextView mContentInfo;
     private TextView mContentDetails;
     private File mUpdateFile;
+    private String mUpdateUrl;
+    private File mCacheDir;
+    private Context mApplicationContext;
     private Button mSystemUpdateToolbarAction;
-    private PowerManager mPowerManager;
-    private NotificationManager mNotificationManager;
+    private UpdateServices mUpdateServices;
     private final UpdateVerifier mPackageVerifier = new UpdateVerifier();
-    private final UpdateEngine mUpdateEngine = new UpdateEngine();
     private boolean mInstallationInProgress = false;
+    private boolean mRebootRequested = false;
+    private int mLastProgress = -1;
+    private long mInstallOperations;
+    private long mInstallStartMillis;
+    /** The status last posted as a notification, 0 once cancelled and -1 before either. */
+    private int mNotifiedStatus = -1;
 
     private final CarUpdateEngineCallback mCarUpdateEngineCallback = new CarUpdateEngineCallback();
 
@@ -82,6 +100,15 @@ public class UpdateLayoutFragment extends Fragment implements UpFragment {
         return fragment;
     }
 
+    /** Create a {@link UpdateLayoutFragment} for an update served at {@code url}. */
+    public static UpdateLayoutFragment getInstance(String url) {
+        UpdateLayoutFragment fragment = new UpdateLayoutFragment();
+        Bundle bundle = new Bundle();
+        bundle.putString(EXTRA_UPDATE_URL, url);
+        fragment.setArguments(bundle);
+        return fragment;
+    }
+
     /** Create a {@link UpdateLayoutFragment} showing an update in progress. */
     public static UpdateLayoutFragment newResumedInstance() {
         UpdateLayoutFragment fragment = new UpdateLayoutFragment();
@@ -95,17 +122,14 @@ public class UpdateLayoutFragment extends Fragment implements UpFragment {
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
-        if (!getArguments().getBoolean(EXTRA_RESUME_UPDATE)) {
+        if (getArguments().containsKey(EXTRA_UPDATE_URL)) {
+            mUpdateUrl = getArguments().getString(EXTRA_UPDATE_URL);
+        } else if (!getArguments().getBoolean(EXTRA_RESUME_UPDATE)) {
             mUpdateFile = new File(getArguments().getString(EXTRA_UPDATE_FILE));
         }
-        mPowerManager = (PowerManager) getContext().getSystemService(Context.POWER_SERVICE);
-        mNotificationManager =
-                (NotificationManager) getContext().getSystemService(NotificationManager.class);
-        mNotificationManager.createNotificationChannel(
-                new NotificationChannel(
-                        NOTIFICATION_CHANNEL_ID,
-                        getContext().getString(R.id.system_update_auto_content_title),
-                        NotificationManager.IMPORTANCE_DEFAULT));
+        mCacheDir = getContext().getCacheDir();
+        mApplicationContext = getContext().getApplicationContext();
+        mUpdateServices = sUpdateServicesFactory.apply(getContext());
     }
 
     @Override
@@ -156,88 +180,211 @@ public class UpdateLayoutFragment extends Fragment implements UpFragment {
         }
     }
 
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        // Leaving before installing, don't keep an extracted payload taking space in /data. The
+        // deletion is queued behind the verifier, so it also catches one extracted after this.
+        if (!mInstallationInProgress) {
+            mUpdateServices.deleteStagedPayload();
+        }
+    }
+
     /** Update the status information. */
     private void showStatus(@StringRes int status) {
         mContentTitle.setText(status);
         if (mInstallationInProgress) {
-            mNotificationManager.notify(NOTIFICATION_ID, createNotification(getContext(), status));
-        } else {
-            mNotificationManager.cancel(NOTIFICATION_ID);
+            // Only post when the status changes, re-posting the same notification is wasted work.
+            if (mNotifiedStatus != status) {
+                if (mNotifiedStatus <= 0) {
+                    // The channel is only needed once an installation starts.
+                    mUpdateServices.createNotificationChannel(
+                            new NotificationChannel(
+                                    NOTIFICATION_CHANNEL_ID,
+                                    getContext().getString(R.string.update_in_progress),
+                                    NotificationManager.IMPORTANCE_DEFAULT));
+                }
+                mNotifiedStatus = status;
+                mUpdateServices.postNotification(
+                        NOTIFICATION_ID, createNotification(getContext(), status));
+            }
+        } else if (mNotifiedStatus != 0) {
+            mNotifiedStatus = 0;
+            mUpdateServices.cancelNotification(NOTIFICATION_ID);
         }
     }
 
-    /** Show the install now button. */
-    private void showInstallNow(UpdateParser.ParsedUpdate update) {
-        mContentTitle.setText(R.string.install_ready);
-        mContentInfo.append(getString(R.string.update_file_name, mUpdateFile.getName()));
+    /** Show the install now button if the preflight check passed. */
+    private void showInstallNow(UpdateParser.ParsedUpdate update,
+            UpdatePreflight.Result preflight) {
+        mContentTitle.setText(preflight.mGo ? R.string.install_ready : R.string.preflight_failed);
+        String name = mUpdateUrl != null
+                ? Uri.parse(mUpdateUrl).getLastPathSegment()
+                : mUpdateFile.getName();
+        // Nothing is downloaded ahead of time from a server, show the size of its payload.
+        long size = mUpdateUrl != null ? update.mSize : mUpdateFile.length();
+        mContentInfo.append(getString(R.string.update_file_name, name));
         mContentInfo.append(System.getProperty("line.separator"));
         mContentInfo.append(getString(R.string.update_file_size));
-        mContentInfo.append(Formatter.formatFileSize(getContext(), mUpdateFile.length()));
-        mContentDetails.setText(null);
-        mSystemUpdateToolbarAction.setOnClickListener(v -> installUpdate(update));
+        mContentInfo.append(Formatter.formatFileSize(getContext(), size));
+        mContentDetails.setText(getPreflightDescription(preflight));
+        if (!preflight.mGo) {
+            // The action bar shows the button by default.
+            mSystemUpdateToolbarAction.setVisibility(View.GONE);
+            mUpdateServices.deleteStagedPayload();
+            return;
+        }
+        mSystemUpdateToolbarAction.setOnClickListener(v -> installUpdate(update, preflight));
         mSystemUpdateToolbarAction.setText(R.string.install_now);
         mSystemUpdateToolbarAction.setVisibility(View.VISIBLE);
     }
 
+    /** Returns the reason for the preflight result, then the install time estimate if any. */
+    private String getPreflightDescription(UpdatePreflight.Result preflight) {
+        StringBuilder description = new StringBuilder();
+        if (preflight.mPartition != null) {
+            description.append(getString(preflight.mReason, preflight.mPartition));
+        } else if (preflight.mReason != 0) {
+            description.append(getString(preflight.mReason));
+        }
+        // The time is estimated from the manifest even when the partitions couldn't be checked.
+        if (preflight.hasEstimate()) {
+            if (description.length() > 0) {
+                description.append(System.getProperty("line.separator"));
+            }
+            long minutes = Math.max(1, TimeUnit.SECONDS.toMinutes(preflight.mEstimatedSeconds));
+            description.append(
+                    getString(R.string.preflight_estimate, minutes, preflight.mOperations));
+        }
+        return description.toString();
+    }
+
     /** Reboot the system. */
     private void rebootNow() {
+        // update_engine keeps reporting UPDATED_NEED_REBOOT until the device goes down.
+        if (mRebootRequested) {
+            return;
+        }
+        mRebootRequested = true;
+        recordInstallation();
         if (Log.isLoggable(TAG, Log.INFO)) {
             Log.i(TAG, "Rebooting Now.");
         }
-        mPowerManager.reboot(REBOOT_REASON);
+        mUpdateServices.reboot(REBOOT_REASON);
     }
 
     /** Attempt to install the update that is copied to the device. */
-    private void installUpdate(UpdateParser.ParsedUpdate parsedUpdate) {
+    private void installUpdate(UpdateParser.ParsedUpdate parsedUpdate,
+            UpdatePreflight.Result preflight) {
+        mInstallOperations = preflight.mOperations;
+        mInstallStartMillis = SystemClock.elapsedRealtime();
         showInstallationInProgress();
-        mUpdateEngine.applyPayload(
+        mUpdateServices.applyPayload(
                 parsedUpdate.mUrl, parsedUpdate.mOffset, parsedUpdate.mSize, parsedUpdate.mProps);
     }
 
+    /** Remember the throughput of a successful installation for later estimates. */
+    private void recordInstallation() {
+        if (mInstallOperations > 0) {
+            UpdatePreflight.recordInstallation(mApplicationContext, mInstallOperations,
+                    SystemClock.elapsedRealtime() - mInstallStartMillis);
+            mInstallOperations = 0;
+        }
+    }
+
     /** Set the layout to show installation progress. */
     private void showInstallationInProgress() {
         mInstallationInProgress = true;
         mProgressBar.setIndeterminate(false);
         mProgressBar.setVisibility(View.VISIBLE);
         mProgressBar.setMax(PERCENT_MAX);
+        mLastProgress = -1;
         mSystemUpdateToolbarAction.setVisibility(View.GONE);
         showStatus(R.string.install_in_progress);
 
-        mUpdateEngine.bind(mCarUpdateEngineCallback, new Handler(getContext().getMainLooper()));
+        mUpdateServices.bind(mCarUpdateEngineCallback, new Handler(getContext().getMainLooper()));
     }
 
     /** Attempt to verify the update and extract information needed for installation. */
-    private class UpdateVerifier extends AsyncTask<File, Void, UpdateParser.ParsedUpdate> {
+    private class UpdateVerifier extends AsyncTask<File, Integer, UpdateParser.ParsedUpdate> {
+        @StringRes
+        private int mFailure = R.string.verify_failure;
+        private UpdatePreflight.Result mPreflight;
 
         @Override
         protected UpdateParser.ParsedUpdate doInBackground(File... files) {
+            UpdateParser.ParsedUpdate update = parse(files);
+            if (update != null && update.isValid()) {
+                mPreflight = UpdatePreflight.check(mApplicationContext, update);
+                if (Log.isLoggable(TAG, Log.INFO)) {
+                    Log.i(TAG, mPreflight.toString());
+                }
+            }
+            return update;
+        }
+
+        private UpdateParser.ParsedUpdate parse(File... files) {
+            if (mUpdateUrl != null) {
+                try {
+                    return HttpUpdateParser.parse(mUpdateUrl, mCacheDir);
+                } catch (IOException e) {
+                    Log.e(TAG, String.format("For url %s", mUpdateUrl), e);
+                    return null;
+                }
+            }
             Preconditions.checkArgument(files.length > 0, "No file specified");
             File file = files[0];
+            int[] lastPercent = {-1};
             try {
-                return UpdateParser.parse(file);
+                return UpdateParser.parse(file, (done, total) -> {
+                    int percent = (int) (done * PERCENT_MAX / total);
+                    if (percent != lastPercent[0]) {
+                        lastPercent[0] = percent;
+                        publishProgress(percent);
+                    }
+                });
+            } catch (UpdateParser.InsufficientSpaceException e) {
+                Log.e(TAG, String.format("For file %s", file), e);
+                mFailure = R.string.extract_insufficient_space;
+                return null;
+            } catch (UpdateParser.StagingUnavailableException e) {
+                Log.e(TAG, String.format("For file %s", file), e);
+                mFailure = R.string.extract_staging_unavailable;
+                return null;
             } catch (IOException e) {
                 Log.e(TAG, String.format("For file %s", file), e);
                 return null;
             }
         }
 
+        @Override
+        protected void onProgressUpdate(Integer... percent) {
+            if (mProgressBar.isIndeterminate()) {
+                mProgressBar.setIndeterminate(false);
+                mProgressBar.setMax(PERCENT_MAX);
+                showStatus(R.string.extract_in_progress);
+            }
+            mProgressBar.setProgress(percent[0]);
+        }
+
         @Override
         protected void onPostExecute(UpdateParser.ParsedUpdate result) {
             mProgressBar.setVisibility(View.GONE);
             if (result == null) {
-                showStatus(R.string.verify_failure);
+                showStatus(mFailure);
                 return;
             }
             if (!result.isValid()) {
                 showStatus(R.string.verify_failure);
                 Log.e(TAG, String.format("Failed verification %s", result));
+                mUpdateServices.deleteStagedPayload();
                 return;
             }
             if (Log.isLoggable(TAG, Log.INFO)) {
                 Log.i(TAG, result.toString());
             }
 
-            showInstallNow(result);
+            showInstallNow(result, mPreflight);
         }
     }
 
@@ -254,7 +401,12 @@ public class UpdateLayoutFragment extends Fragment implements UpFragment {
                     rebootNow();
                     break;
                 case UpdateEngine.UpdateStatusConstants.DOWNLOADING:
-                    mProgressBar.setProgress((int) (percent * 100));
+                    // update_engine can report many times per percent, skip redundant updates.
+                    int progress = (int) (percent * PERCENT_MAX);
+                    if (progress != mLastProgress) {
+                        mLastProgress = progress;
+                        mProgressBar.setProgress(progress);
+                    }
                     break;
                 default:
                     // noop
@@ -265,6 +417,10 @@ public class UpdateLayoutFragment extends Fragment implements UpFragment {
         public void onPayloadApplicationComplete(int errorCode) {
             Log.w(TAG, String.format("onPayloadApplicationComplete %d", errorCode));
             mInstallationInProgress = false;
+            mUpdateServices.deleteStagedPayload();
+            if (errorCode == UpdateEngine.ErrorCodeConstants.SUCCESS) {
+                recordInstallation();
+            }
             showStatus(errorCode == UpdateEngine.ErrorCodeConstants.SUCCESS
                     ? R.string.install_success
                     : R.string.install_failed);
@@ -24,8 +24,11 @@ import com.android.internal.util.Preconditions;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Locale;
@@ -40,6 +43,11 @@ class UpdateParser {
     private static final String PAYLOAD_PROPERTIES = "payload_properties.txt";
     private static final String FILE_URL_PREFIX = "file://";
     private static final int ZIP_FILE_HEADER = 30;
+    // A location update_engine is allowed to read packages from. It is 0770 system:cache, the
+    // app holds ACCESS_CACHE_FILESYSTEM for the group and sepolicy/ lets it write there.
+    private static final File STAGING_DIR = new File("/data/ota_package");
+    private static final String STAGED_PAYLOAD_FILE = "payload.bin";
+    private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
 
     private UpdateParser() {
     }
@@ -49,11 +57,25 @@ class UpdateParser {
      */
     @Nullable
     static ParsedUpdate parse(@NonNull File file) throws IOException {
+        return parse(file, null);
+    }
+
+    /**
+     * Parse a zip file containing a system update and return a non null ParsedUpdate. A
+     * compressed payload is extracted to a staging file first, reporting its progress to
+     * {@code listener}.
+     */
+    @Nullable
+    static ParsedUpdate parse(@NonNull File file, @Nullable ProgressListener listener)
+            throws IOException {
         Preconditions.checkNotNull(file);
+        // Only one update is installed at a time, a payload left by a previous one is stale.
+        deleteStagedPayload();
 
         long payloadOffset = 0;
         long payloadSize = 0;
         boolean payloadFound = false;
+        ZipEntry payloadEntry = null;
         String[] props = null;
 
         try (ZipFile zipFile = new ZipFile(file)) {
@@ -73,6 +95,7 @@ class UpdateParser {
                 } else if (entry.getName().equals(PAYLOAD_BIN_FILE)) {
                     payloadSize = fileSize;
                     payloadFound = true;
+                    payloadEntry = entry;
                 } else if (entry.getName().equals(PAYLOAD_PROPERTIES)) {
                     try (BufferedReader buffer = new BufferedReader(
                             new InputStreamReader(zipFile.getInputStream(entry)))) {
@@ -87,10 +110,96 @@ class UpdateParser {
                     Log.d(TAG, String.format("Entry %s", entry.getName()));
                 }
             }
+
+            // update_engine reads the payload in place, which only works if it is STORED.
+            if (payloadEntry != null && payloadEntry.getMethod() != ZipEntry.STORED) {
+                File staged = stagePayload(zipFile, payloadEntry, listener);
+                return new ParsedUpdate(staged, 0, staged.length(), props);
+            }
         }
         return new ParsedUpdate(file, payloadOffset, payloadSize, props);
     }
 
+    /**
+     * Delete the payload extracted by a previous {@link #parse}, if any. Unlinking a large file
+     * takes a while, don't call this on the main thread.
+     */
+    static void deleteStagedPayload() {
+        new File(STAGING_DIR, STAGED_PAYLOAD_FILE).delete();
+    }
+
+    /** Inflate the payload into the staging directory and return the staged file. */
+    private static File stagePayload(ZipFile zipFile, ZipEntry entry,
+            @Nullable ProgressListener listener) throws IOException {
+        long size = entry.getSize();
+        File staged = new File(STAGING_DIR, STAGED_PAYLOAD_FILE);
+        // The free space of a directory that can't be written reads as 0, tell them apart.
+        if (!STAGING_DIR.isDirectory() || !STAGING_DIR.canWrite()) {
+            throw new StagingUnavailableException(
+                    String.format("Cannot write to %s", STAGING_DIR));
+        }
+        // Any previously staged payload was deleted when the parse started.
+        long available = STAGING_DIR.getUsableSpace();
+        if (size < 0 || available < size) {
+            throw new InsufficientSpaceException(String.format(Locale.US,
+                    "Payload needs %d bytes, %d available in %s", size, available, STAGING_DIR));
+        }
+        if (Log.isLoggable(TAG, Log.INFO)) {
+            Log.i(TAG, String.format("Extracting compressed payload to %s", staged));
+        }
+
+        byte[] buffer = new byte[INFLATE_BUFFER_SIZE];
+        long written = 0;
+        boolean success = false;
+        try (InputStream in = zipFile.getInputStream(entry);
+                FileOutputStream out = new FileOutputStream(staged)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new InterruptedIOException("Extraction cancelled");
+                }
+                out.write(buffer, 0, read);
+                written += read;
+                if (listener != null) {
+                    listener.onProgress(written, size);
+                }
+            }
+            if (written != size) {
+                throw new IOException(String.format(Locale.US,
+                        "Extracted %d bytes, expected %d", written, size));
+            }
+            // update_engine runs as another user and must be able to read it back from disk.
+            out.getFD().sync();
+            staged.setReadable(true, /* ownerOnly= */ false);
+            success = true;
+        } finally {
+            if (!success) {
+                staged.delete();
+            }
+        }
+        return staged;
+    }
+
+    /** Receives the progress of extracting a compressed payload. */
+    interface ProgressListener {
+        /** Called after {@code done} of {@code total} bytes have been extracted. */
+        void onProgress(long done, long total);
+    }
+
+    /** Thrown when there isn't enough free space to extract the payload. */
+    static class InsufficientSpaceException extends IOException {
+        InsufficientSpaceException(String message) {
+            super(message);
+        }
+    }
+
+    /** Thrown when the payload can't be extracted where update_engine can read it. */
+    static class StagingUnavailableException extends IOException {
+        StagingUnavailableException(String message) {
+            super(message);
+        }
+    }
+
     /** Information parsed from an update file. */
     static class ParsedUpdate {
         final String mUrl;
@@ -99,7 +208,11 @@ class UpdateParser {
         final String[] mProps;
 
         ParsedUpdate(File file, long offset, long size, String[] props) {
-            mUrl = FILE_URL_PREFIX + file.getAbsolutePath();
+            this(FILE_URL_PREFIX + file.getAbsolutePath(), offset, size, props);
+        }
+
+        ParsedUpdate(String url, long offset, long size, String[] props) {
+            mUrl = url;
             mOffset = offset;
             mSize = size;
             mProps = props;
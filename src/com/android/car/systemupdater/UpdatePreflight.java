@@ -0,0 +1,451 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.car.systemupdater;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Environment;
+import android.os.StatFs;
+import android.os.SystemProperties;
+import android.util.Log;
+
+import androidx.annotation.StringRes;
+import androidx.annotation.VisibleForTesting;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Check an update can be installed before starting, from the partition sizes and operation counts
+ * in the manifest of its payload.
+ */
+class UpdatePreflight {
+
+    private static final String TAG = "UpdatePreflight";
+    private static final String FILE_URL_PREFIX = "file://";
+    private static final String HTTP_URL_PREFIX = "http";
+    private static final byte[] PAYLOAD_MAGIC = "CrAU".getBytes(StandardCharsets.US_ASCII);
+    // Magic, major version and manifest size, then the metadata signature size since version 2.
+    private static final int PAYLOAD_HEADER_SIZE_V1 = 20;
+    private static final int PAYLOAD_HEADER_SIZE_V2 = 24;
+    private static final long MAX_MANIFEST_SIZE = 32 * 1024 * 1024;
+
+    // Field numbers from update_engine's update_metadata.proto.
+    private static final int MANIFEST_PARTITIONS = 13;
+    private static final int PARTITION_NAME = 1;
+    private static final int PARTITION_NEW_INFO = 7;
+    private static final int PARTITION_OPERATIONS = 8;
+    private static final int PARTITION_INFO_SIZE = 1;
+
+    private static final String SLOT_SUFFIX_PROPERTY = "ro.boot.slot_suffix";
+    private static final String VIRTUAL_AB_PROPERTY = "ro.virtual_ab.enabled";
+    private static final String BY_NAME_DIR = "/dev/block/by-name";
+    private static final String SYS_CLASS_BLOCK_DIR = "/sys/class/block";
+    private static final String SUPER_PARTITION = "super";
+    private static final int SECTOR_SIZE = 512;
+
+    private static final String PREFERENCES_NAME = "install_history";
+    private static final String KEY_OPERATIONS_PER_SECOND = "operations_per_second";
+    // A conservative guess until an installation has been timed on this device.
+    private static final float DEFAULT_OPERATIONS_PER_SECOND = 10f;
+    // Weight of the latest installation in the average throughput.
+    private static final float THROUGHPUT_WEIGHT = 0.5f;
+
+    private UpdatePreflight() {
+    }
+
+    /**
+     * Check the payload of {@code update} fits the target slot of this device. With Virtual A/B,
+     * warn when the free space of /data may not be enough.
+     */
+    @NonNull
+    static Result check(@NonNull Context context, @NonNull UpdateParser.ParsedUpdate update) {
+        List<Partition> partitions;
+        try {
+            partitions = readPartitions(update);
+        } catch (IOException e) {
+            Log.w(TAG, String.format("Failed to read the manifest of %s", update), e);
+            // update_engine will check the payload itself, don't block on what can't be read here.
+            return Result.go(R.string.preflight_unavailable, 0, 0);
+        }
+        if (partitions == null) {
+            return Result.noGo(R.string.preflight_invalid_payload, null);
+        }
+
+        String slotSuffix = SystemProperties.get(SLOT_SUFFIX_PROPERTY);
+        if (slotSuffix.isEmpty()) {
+            return Result.noGo(R.string.preflight_not_ab, null);
+        }
+        String targetSuffix = slotSuffix.equals("_a") ? "_b" : "_a";
+
+        long operations = 0;
+        for (Partition partition : partitions) {
+            operations += partition.mOperations;
+        }
+        long seconds = (long) Math.ceil(operations / getOperationsPerSecond(context));
+
+        try {
+            Set<String> devices = listBlockDevices();
+            long dynamicSize = 0;
+            for (Partition partition : partitions) {
+                String device = partition.mName + targetSuffix;
+                if (devices.contains(device)) {
+                    long targetSize = getBlockDeviceSize(device);
+                    if (targetSize < partition.mNewSize) {
+                        Log.w(TAG, String.format(Locale.US, "%s is %d bytes, update needs %d",
+                                device, targetSize, partition.mNewSize));
+                        return Result.noGo(R.string.preflight_partition_too_small,
+                                partition.mName);
+                    }
+                } else if (devices.contains(SUPER_PARTITION)) {
+                    // Not a physical partition, it is allocated in the super partition.
+                    dynamicSize += partition.mNewSize;
+                } else {
+                    throw new IOException(String.format("No block device for %s", device));
+                }
+            }
+            if (dynamicSize > 0) {
+                long superSize = getBlockDeviceSize(SUPER_PARTITION);
+                if (superSize < dynamicSize) {
+                    Log.w(TAG, String.format(Locale.US, "%s is %d bytes, update needs %d",
+                            SUPER_PARTITION, superSize, dynamicSize));
+                    return Result.noGo(R.string.preflight_partition_too_small, SUPER_PARTITION);
+                }
+                // With Virtual A/B the old partitions are kept as snapshots, whose copy-on-write
+                // data can take up to the size of the new partitions. Only a warning: the space
+                // is taken from super first and compressed snapshots need much less, so
+                // update_engine accepts most updates that don't fit this bound. Otherwise the
+                // target slot is written in place and /data isn't needed.
+                if (SystemProperties.getBoolean(VIRTUAL_AB_PROPERTY, false)) {
+                    long available = getAvailableDataBytes();
+                    if (available < dynamicSize) {
+                        Log.w(TAG, String.format(Locale.US, "%d bytes free in /data, update"
+                                + " needs up to %d", available, dynamicSize));
+                        return Result.go(R.string.preflight_low_space, operations, seconds);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // An app usually can't read the block devices, update_engine will check them itself.
+            Log.w(TAG, "Failed to read the sizes of the target partitions", e);
+            return Result.go(R.string.preflight_unavailable, operations, seconds);
+        }
+        return Result.go(0, operations, seconds);
+    }
+
+    /** Remember how fast an installation of {@code operations} went on this device. */
+    static void recordInstallation(@NonNull Context context, long operations, long millis) {
+        if (operations <= 0 || millis <= 0) {
+            return;
+        }
+        float latest = operations * 1000f / millis;
+        float average = THROUGHPUT_WEIGHT * latest
+                + (1 - THROUGHPUT_WEIGHT) * getOperationsPerSecond(context);
+        // The device reboots right after, so write it out now.
+        getPreferences(context).edit().putFloat(KEY_OPERATIONS_PER_SECOND, average).commit();
+    }
+
+    private static float getOperationsPerSecond(Context context) {
+        return getPreferences(context)
+                .getFloat(KEY_OPERATIONS_PER_SECOND, DEFAULT_OPERATIONS_PER_SECOND);
+    }
+
+    private static SharedPreferences getPreferences(Context context) {
+        return context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Returns the names of the block devices of the partitions. Throws if they can't be listed,
+     * so that a device missing from the list really doesn't exist.
+     */
+    private static Set<String> listBlockDevices() throws IOException {
+        String[] names = new File(BY_NAME_DIR).list();
+        if (names == null) {
+            throw new IOException(String.format("Cannot list %s", BY_NAME_DIR));
+        }
+        return new HashSet<>(Arrays.asList(names));
+    }
+
+    /** Returns the size of the existing block device {@code name}. */
+    private static long getBlockDeviceSize(String name) throws IOException {
+        try {
+            String device = new File(BY_NAME_DIR, name).getCanonicalFile().getName();
+            File sizeFile = new File(new File(SYS_CLASS_BLOCK_DIR, device), "size");
+            String sectors = new String(Files.readAllBytes(sizeFile.toPath()),
+                    StandardCharsets.US_ASCII).trim();
+            return Long.parseLong(sectors) * SECTOR_SIZE;
+        } catch (NumberFormatException | SecurityException e) {
+            throw new IOException(String.format("Cannot read the size of %s", name), e);
+        }
+    }
+
+    /** Returns the bytes of /data available to the update. */
+    private static long getAvailableDataBytes() throws IOException {
+        try {
+            return new StatFs(Environment.getDataDirectory().getPath()).getAvailableBytes();
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Cannot read the free space of /data", e);
+        }
+    }
+
+    /**
+     * Read the partitions updated by the payload of {@code update}, or return null if it is not a
+     * payload.
+     */
+    @VisibleForTesting
+    @Nullable
+    static List<Partition> readPartitions(UpdateParser.ParsedUpdate update)
+            throws IOException {
+        byte[] header = new byte[PAYLOAD_HEADER_SIZE_V2];
+        byte[] manifest;
+        try (DataInputStream in = new DataInputStream(openPayload(update))) {
+            in.readFully(header, 0, PAYLOAD_HEADER_SIZE_V1);
+            ByteBuffer buffer = ByteBuffer.wrap(header);
+            for (int i = 0; i < PAYLOAD_MAGIC.length; i++) {
+                if (header[i] != PAYLOAD_MAGIC[i]) {
+                    return null;
+                }
+            }
+            long version = buffer.getLong(4);
+            long manifestSize = buffer.getLong(12);
+            if (version >= 2) {
+                in.readFully(header, PAYLOAD_HEADER_SIZE_V1,
+                        PAYLOAD_HEADER_SIZE_V2 - PAYLOAD_HEADER_SIZE_V1);
+            }
+            if (manifestSize <= 0 || manifestSize > MAX_MANIFEST_SIZE
+                    || manifestSize > update.mSize) {
+                return null;
+            }
+            manifest = new byte[(int) manifestSize];
+            in.readFully(manifest);
+        }
+
+        List<Partition> partitions = new ArrayList<>();
+        ProtoReader reader = new ProtoReader(manifest, 0, manifest.length);
+        while (reader.next()) {
+            if (reader.mField == MANIFEST_PARTITIONS) {
+                partitions.add(readPartition(reader.message()));
+            } else {
+                reader.skip();
+            }
+        }
+        return partitions;
+    }
+
+    private static Partition readPartition(ProtoReader reader) throws IOException {
+        Partition partition = new Partition();
+        while (reader.next()) {
+            switch (reader.mField) {
+                case PARTITION_NAME:
+                    partition.mName = reader.string();
+                    break;
+                case PARTITION_NEW_INFO:
+                    ProtoReader info = reader.message();
+                    while (info.next()) {
+                        if (info.mField == PARTITION_INFO_SIZE) {
+                            partition.mNewSize = info.varint();
+                        } else {
+                            info.skip();
+                        }
+                    }
+                    break;
+                case PARTITION_OPERATIONS:
+                    partition.mOperations++;
+                    reader.skip();
+                    break;
+                default:
+                    reader.skip();
+            }
+        }
+        if (partition.mName == null) {
+            throw new IOException("Partition without a name");
+        }
+        return partition;
+    }
+
+    /** Open a stream of the payload of {@code update}, from its first byte. */
+    private static InputStream openPayload(UpdateParser.ParsedUpdate update) throws IOException {
+        if (update.mUrl.startsWith(FILE_URL_PREFIX)) {
+            FileInputStream in =
+                    new FileInputStream(update.mUrl.substring(FILE_URL_PREFIX.length()));
+            in.getChannel().position(update.mOffset);
+            return in;
+        } else if (update.mUrl.startsWith(HTTP_URL_PREFIX)) {
+            // Only the header and manifest are read, but ask for a bounded range.
+            long length = Math.min(update.mSize, PAYLOAD_HEADER_SIZE_V2 + MAX_MANIFEST_SIZE);
+            return HttpUpdateParser.openRange(update.mUrl, update.mOffset, length);
+        }
+        throw new IOException(String.format("Unsupported url %s", update.mUrl));
+    }
+
+    /** A partition written by the payload. */
+    @VisibleForTesting
+    static class Partition {
+        String mName;
+        long mNewSize;
+        long mOperations;
+    }
+
+    /** Reads the fields of a protocol buffer message one at a time. */
+    private static class ProtoReader {
+        private static final int WIRETYPE_VARINT = 0;
+        private static final int WIRETYPE_FIXED64 = 1;
+        private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+        private static final int WIRETYPE_FIXED32 = 5;
+
+        private final byte[] mBuffer;
+        private final int mEnd;
+        private int mPos;
+        int mField;
+        private int mWireType;
+
+        ProtoReader(byte[] buffer, int start, int end) {
+            mBuffer = buffer;
+            mPos = start;
+            mEnd = end;
+        }
+
+        /** Move to the next field, returning false at the end of the message. */
+        boolean next() throws IOException {
+            if (mPos >= mEnd) {
+                return false;
+            }
+            long tag = varint();
+            mField = (int) (tag >>> 3);
+            mWireType = (int) (tag & 0x7);
+            return true;
+        }
+
+        long varint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (mPos >= mEnd) {
+                    throw new IOException("Truncated varint");
+                }
+                byte b = mBuffer[mPos++];
+                value |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        String string() throws IOException {
+            int length = length();
+            String value = new String(mBuffer, mPos, length, StandardCharsets.UTF_8);
+            mPos += length;
+            return value;
+        }
+
+        ProtoReader message() throws IOException {
+            int length = length();
+            ProtoReader reader = new ProtoReader(mBuffer, mPos, mPos + length);
+            mPos += length;
+            return reader;
+        }
+
+        void skip() throws IOException {
+            switch (mWireType) {
+                case WIRETYPE_VARINT:
+                    varint();
+                    break;
+                case WIRETYPE_FIXED64:
+                    advance(8);
+                    break;
+                case WIRETYPE_LENGTH_DELIMITED:
+                    advance(length());
+                    break;
+                case WIRETYPE_FIXED32:
+                    advance(4);
+                    break;
+                default:
+                    throw new IOException(String.format(Locale.US,
+                            "Unsupported wire type %d", mWireType));
+            }
+        }
+
+        private int length() throws IOException {
+            long length = varint();
+            if (length < 0 || length > mEnd - mPos) {
+                throw new IOException("Truncated field");
+            }
+            return (int) length;
+        }
+
+        private void advance(int count) throws IOException {
+            if (count > mEnd - mPos) {
+                throw new IOException("Truncated field");
+            }
+            mPos += count;
+        }
+    }
+
+    /** Whether an update can be installed, and why. */
+    static class Result {
+        final boolean mGo;
+        /** Why the update can't be installed, or what wasn't checked. 0 if all checks passed. */
+        @StringRes
+        final int mReason;
+        final String mPartition;
+        final long mOperations;
+        final long mEstimatedSeconds;
+
+        private Result(boolean go, @StringRes int reason, String partition, long operations,
+                long estimatedSeconds) {
+            mGo = go;
+            mReason = reason;
+            mPartition = partition;
+            mOperations = operations;
+            mEstimatedSeconds = estimatedSeconds;
+        }
+
+        static Result go(@StringRes int reason, long operations, long estimatedSeconds) {
+            return new Result(true, reason, null, operations, estimatedSeconds);
+        }
+
+        static Result noGo(@StringRes int reason, @Nullable String partition) {
+            return new Result(false, reason, partition, 0, 0);
+        }
+
+        /** Returns true if the installation time was estimated, whatever the reason. */
+        boolean hasEstimate() {
+            return mOperations > 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "Result: go=%b, partition=%s, operations=%d, estimatedSeconds=%d",
+                    mGo, mPartition, mOperations, mEstimatedSeconds);
+        }
+    }
+}
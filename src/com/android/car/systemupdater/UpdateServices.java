@@ -0,0 +1,49 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.systemupdater;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.os.Handler;
+import android.os.UpdateEngineCallback;
+
+/**
+ * The system services used to install an update, so that an installation can be driven
+ * without a device or an update package.
+ */
+interface UpdateServices {
+
+    /** Start receiving the status of the update engine on {@code handler}. */
+    void bind(UpdateEngineCallback callback, Handler handler);
+
+    /** Ask the update engine to apply the payload at {@code url}. */
+    void applyPayload(String url, long offset, long size, String[] properties);
+
+    /** Reboot the device for the update to take effect. */
+    void reboot(String reason);
+
+    /** Delete the payload extracted for the update engine, if any, off the main thread. */
+    void deleteStagedPayload();
+
+    /** Create the channel the status notifications are posted to. */
+    void createNotificationChannel(NotificationChannel channel);
+
+    /** Post {@code notification}, replacing the one with the same {@code id}. */
+    void postNotification(int id, Notification notification);
+
+    /** Remove the notification with {@code id}. */
+    void cancelNotification(int id);
+}
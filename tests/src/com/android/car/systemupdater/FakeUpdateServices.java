@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.systemupdater;
+
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.os.Debug;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.os.UpdateEngine;
+import android.os.UpdateEngineCallback;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An {@link UpdateServices} standing in for the update engine. It replays status sequences to
+ * the bound callback at a chosen rate and measures the main thread time and the allocations of
+ * each callback. Reboots, notifications and deletions of the staged payload are only counted.
+ */
+class FakeUpdateServices implements UpdateServices {
+    private static final long TIMEOUT_SECONDS = 60;
+    // Leaves the main thread idle before the first event so that it is dispatched on time.
+    private static final long START_DELAY_MS = 100;
+    private static final Pattern STATUS_LINE =
+            Pattern.compile("onStatusUpdate (\\d+), Percent ([\\d.]+)");
+    private static final Pattern COMPLETE_LINE =
+            Pattern.compile("onPayloadApplicationComplete (-?\\d+)");
+
+    private final CountDownLatch mBound = new CountDownLatch(1);
+    private volatile UpdateEngineCallback mCallback;
+    private volatile Handler mHandler;
+    private volatile String mPayloadUrl;
+    // Only changed on the main thread, read by the tests once a replay is done.
+    private final List<String> mReboots = new ArrayList<>();
+    private int mStagedPayloadDeletions;
+    private int mPostedNotifications;
+    private int mCancelledNotifications;
+
+    @Override
+    public void bind(UpdateEngineCallback callback, Handler handler) {
+        mCallback = callback;
+        mHandler = handler;
+        mBound.countDown();
+    }
+
+    @Override
+    public void applyPayload(String url, long offset, long size, String[] properties) {
+        mPayloadUrl = url;
+    }
+
+    @Override
+    public void reboot(String reason) {
+        mReboots.add(reason);
+    }
+
+    @Override
+    public void deleteStagedPayload() {
+        mStagedPayloadDeletions++;
+    }
+
+    @Override
+    public void createNotificationChannel(NotificationChannel channel) {
+    }
+
+    @Override
+    public void postNotification(int id, Notification notification) {
+        mPostedNotifications++;
+    }
+
+    @Override
+    public void cancelNotification(int id) {
+        mCancelledNotifications++;
+    }
+
+    /** Wait for the fragment to bind to the update engine. */
+    void awaitBound() throws InterruptedException {
+        if (!mBound.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new AssertionError("The update engine was never bound");
+        }
+    }
+
+    /** Returns the url of the last payload applied, null if none. */
+    String getPayloadUrl() {
+        return mPayloadUrl;
+    }
+
+    /** Returns the reasons of the reboots requested. */
+    List<String> getReboots() {
+        return mReboots;
+    }
+
+    /** Returns the number of times the staged payload was deleted. */
+    int getStagedPayloadDeletions() {
+        return mStagedPayloadDeletions;
+    }
+
+    /** Returns the number of notifications posted. */
+    int getPostedNotifications() {
+        return mPostedNotifications;
+    }
+
+    /** Returns the number of notifications cancelled. */
+    int getCancelledNotifications() {
+        return mCancelledNotifications;
+    }
+
+    /**
+     * Deliver {@code events} to the bound callback on its handler, {@code ratePerSecond} of them
+     * a second, and wait until all of them were handled.
+     */
+    @SuppressWarnings("deprecation")
+    Measurements replay(List<Event> events, int ratePerSecond) throws InterruptedException {
+        Measurements measurements = new Measurements();
+        CountDownLatch done = new CountDownLatch(events.size());
+        int[] postedBefore = new int[1];
+        mHandler.post(() -> {
+            postedBefore[0] = mPostedNotifications;
+            Debug.startAllocCounting();
+        });
+        long start = SystemClock.uptimeMillis() + START_DELAY_MS;
+        for (int i = 0; i < events.size(); i++) {
+            Event event = events.get(i);
+            mHandler.postAtTime(() -> {
+                long allocations = Debug.getThreadAllocCount();
+                long threadNanos = Debug.threadCpuTimeNanos();
+                event.deliver(mCallback);
+                measurements.add(Debug.threadCpuTimeNanos() - threadNanos,
+                        Debug.getThreadAllocCount() - allocations);
+                done.countDown();
+            }, start + i * 1000L / ratePerSecond);
+        }
+        if (!done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new AssertionError(String.format(
+                    "%d of %d events were not handled", done.getCount(), events.size()));
+        }
+        long durationMillis = SystemClock.uptimeMillis() - start;
+        CountDownLatch stopped = new CountDownLatch(1);
+        mHandler.post(() -> {
+            Debug.stopAllocCounting();
+            measurements.mNotifications = mPostedNotifications - postedBefore[0];
+            stopped.countDown();
+        });
+        stopped.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        measurements.mDurationMillis = Math.max(1, durationMillis);
+        return measurements;
+    }
+
+    /** Returns {@code count} DOWNLOADING updates going from 0 to 100 percent. */
+    static List<Event> downloading(int count) {
+        List<Event> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(Event.status(UpdateEngine.UpdateStatusConstants.DOWNLOADING,
+                    (float) i / Math.max(1, count - 1)));
+        }
+        return events;
+    }
+
+    /**
+     * Returns the events of a recorded installation, read from the lines the fragment logs for
+     * each callback. Other lines are ignored.
+     */
+    static List<Event> parseLog(String log) {
+        List<Event> events = new ArrayList<>();
+        for (String line : log.split("\n")) {
+            Matcher status = STATUS_LINE.matcher(line);
+            Matcher complete = COMPLETE_LINE.matcher(line);
+            if (status.find()) {
+                events.add(Event.status(Integer.parseInt(status.group(1)),
+                        Float.parseFloat(status.group(2))));
+            } else if (complete.find()) {
+                events.add(Event.complete(Integer.parseInt(complete.group(1))));
+            }
+        }
+        return events;
+    }
+
+    /** A call from the update engine. */
+    static final class Event {
+        private final boolean mComplete;
+        private final int mCode;
+        private final float mPercent;
+
+        private Event(boolean complete, int code, float percent) {
+            mComplete = complete;
+            mCode = code;
+            mPercent = percent;
+        }
+
+        /** A status update, one of {@code UpdateEngine.UpdateStatusConstants}. */
+        static Event status(int status, float percent) {
+            return new Event(false, status, percent);
+        }
+
+        /** The end of the installation, one of {@code UpdateEngine.ErrorCodeConstants}. */
+        static Event complete(int errorCode) {
+            return new Event(true, errorCode, 0);
+        }
+
+        private void deliver(UpdateEngineCallback callback) {
+            if (mComplete) {
+                callback.onPayloadApplicationComplete(mCode);
+            } else {
+                callback.onStatusUpdate(mCode, mPercent);
+            }
+        }
+    }
+
+    /** What the callbacks of a replay cost the main thread. */
+    static final class Measurements {
+        private int mCallbacks;
+        private long mThreadNanos;
+        private long mMaxThreadNanos;
+        private long mAllocations;
+        private int mNotifications;
+        private long mDurationMillis;
+
+        private void add(long threadNanos, long allocations) {
+            mCallbacks++;
+            mThreadNanos += threadNanos;
+            mMaxThreadNanos = Math.max(mMaxThreadNanos, threadNanos);
+            mAllocations += allocations;
+        }
+
+        /** Returns the mean main thread time of a callback. */
+        double getMeanThreadMicros() {
+            return mThreadNanos / 1000.0 / mCallbacks;
+        }
+
+        /** Returns the mean number of objects allocated by a callback. */
+        double getAllocationsPerCallback() {
+            return (double) mAllocations / mCallbacks;
+        }
+
+        /** Returns the number of notifications posted during the replay. */
+        int getNotifications() {
+            return mNotifications;
+        }
+
+        /** Returns the notifications posted per second of replay. */
+        double getNotificationsPerSecond() {
+            return mNotifications * 1000.0 / mDurationMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d callbacks in %d ms, %.1f us mean (%.1f us max), %.2f allocations each,"
+                            + " %d notifications",
+                    mCallbacks, mDurationMillis, getMeanThreadMicros(),
+                    mMaxThreadNanos / 1000.0, getAllocationsPerCallback(), mNotifications);
+        }
+    }
+}
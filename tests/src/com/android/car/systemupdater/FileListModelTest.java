@@ -0,0 +1,357 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.systemupdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import android.view.ViewGroup;
+
+import androidx.recyclerview.widget.RecyclerView;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Checks the rows of a {@link FileListModel} as files change and sort keys load, and that the
+ * changes notified to its adapter lead to the same rows.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class FileListModelTest {
+    private static final File FOLDER = new File("/storage/usb/builds");
+
+    private FileListModel mModel;
+    private RecordingAdapter mAdapter;
+
+    @Before
+    public void setUp() {
+        mModel = new FileListModel();
+        mAdapter = new RecordingAdapter(mModel);
+        mModel.setAdapter(mAdapter);
+    }
+
+    @After
+    public void tearDown() {
+        mModel.setAdapter(null);
+    }
+
+    @Test
+    public void updateFolderEntries_notifiesInsertsAndRemoves() {
+        mModel.setFolderEntries(entries("a.zip", "c.zip", "old", "e.zip"));
+        mAdapter.reset();
+
+        mModel.updateFolderEntries(entries("b.zip", "c.zip", "f.zip", "new", "old"));
+
+        assertRows("new", "old", "b.zip", "c.zip", "f.zip");
+        assertEquals(3, mAdapter.mInserted);
+        assertEquals(2, mAdapter.mRemoved);
+        assertEquals(0, mAdapter.mFullChanges);
+    }
+
+    @Test
+    public void updateFolderEntries_keepsUnchangedEntries() {
+        mModel.setFolderEntries(entries("a.zip", "b.zip"));
+        FileListModel.Entry kept = mModel.get(0);
+        mAdapter.reset();
+
+        mModel.updateFolderEntries(entries("a.zip", "b.zip"));
+
+        assertTrue(kept == mModel.get(0));
+        assertEquals(0, mAdapter.mInserted + mAdapter.mRemoved + mAdapter.mFullChanges);
+    }
+
+    @Test
+    public void applyFolderChanges_replacesChangedFile() {
+        mModel.setSortMode(FileListModel.SORT_BY_SIZE);
+        List<FileListModel.Entry> entries = entries("a.zip", "b.zip", "c.zip");
+        mModel.setFolderEntries(entries);
+        mModel.setSortKeys(FileListModel.SORT_BY_SIZE, entries, new long[] {1, 2, 3});
+        assertRows("c.zip", "b.zip", "a.zip");
+        FileListModel.Entry copied = entries.get(2);
+        mAdapter.reset();
+
+        // c.zip was still being copied when its size was read.
+        mModel.applyFolderChanges(Collections.singleton(copied.mFile), entries("c.zip"));
+
+        assertRows("b.zip", "a.zip", "c.zip");
+        FileListModel.Entry replaced = mModel.get(2);
+        assertTrue(replaced != copied);
+        assertFalse(replaced.hasSortKey(FileListModel.SORT_BY_SIZE));
+        assertEquals(0, mAdapter.mFullChanges);
+    }
+
+    @Test
+    public void applyFolderChanges_removesDeletedFile() {
+        mModel.setFolderEntries(entries("a.zip", "b.zip", "c.zip"));
+        mAdapter.reset();
+
+        mModel.applyFolderChanges(Collections.singleton(new File(FOLDER, "b.zip")),
+                Collections.emptyList());
+
+        assertRows("a.zip", "c.zip");
+        assertEquals(1, mAdapter.mRemoved);
+        assertEquals(0, mAdapter.mFullChanges);
+    }
+
+    @Test
+    public void applyFolderChanges_insertsBeforeSubtreeEntries() {
+        mModel.setFolderEntries(entries("ota_a.zip", "ota_c.zip", "x.zip"));
+        mModel.setFilter("ota");
+        mModel.addSubtreeEntries(subtreeEntries("sub/ota_b.zip", "sub/ota_0.zip"));
+        mAdapter.reset();
+
+        mModel.applyFolderChanges(Collections.emptyList(),
+                entries("ota_d.zip", "ota_0.zip", "y.zip"));
+
+        assertRows("ota_0.zip", "ota_a.zip", "ota_c.zip", "ota_d.zip", "sub/ota_b.zip",
+                "sub/ota_0.zip");
+        assertEquals(0, mAdapter.mFullChanges);
+        // Files not matching the filter are still part of the folder.
+        assertTrue(mModel.getFolderFiles().contains(new File(FOLDER, "y.zip")));
+    }
+
+    @Test
+    public void setFilter_narrowingMatchesRefilter() {
+        List<FileListModel.Entry> entries =
+                entries("ota_1.zip", "OTA_2.zip", "other.zip", "otas", "full_ota.zip");
+        List<FileListModel.Entry> subtree =
+                subtreeEntries("a/ota_3.zip", "a/xota.zip", "b/notes.zip");
+        mModel.setFolderEntries(entries);
+        mModel.setFilter("o");
+        mModel.addSubtreeEntries(subtree);
+
+        mModel.setFilter("ot");
+        mModel.setFilter("OTA_");
+
+        FileListModel refiltered = new FileListModel();
+        refiltered.setFolderEntries(entries);
+        refiltered.addSubtreeEntries(subtree);
+        refiltered.setFilter("ota_");
+        assertEquals(rows(refiltered), rows(mModel));
+        assertEquals(rows(mModel), mAdapter.mRows);
+    }
+
+    @Test
+    public void setSortKeys_sortsKeyedEntriesBeforeUnkeyed() {
+        mModel.setSortMode(FileListModel.SORT_BY_SIZE);
+        List<FileListModel.Entry> entries = entries("a.zip", "b.zip", "c.zip", "d.zip", "old");
+        mModel.setFolderEntries(entries);
+        mAdapter.reset();
+
+        mModel.setSortKeys(FileListModel.SORT_BY_SIZE,
+                Arrays.asList(entries.get(3), entries.get(1)), new long[] {10, 20});
+
+        assertRows("old", "b.zip", "d.zip", "a.zip", "c.zip");
+        assertEquals(0, mAdapter.mFullChanges);
+
+        mModel.setSortKeys(FileListModel.SORT_BY_SIZE,
+                Arrays.asList(entries.get(0), entries.get(2)), new long[] {15, 30});
+
+        assertRows("old", "c.zip", "b.zip", "a.zip", "d.zip");
+        assertEquals(0, mAdapter.mFullChanges);
+    }
+
+    @Test
+    public void setSortKeys_inBatchesMatchesFullSort() {
+        mModel.setSortMode(FileListModel.SORT_BY_MODIFIED);
+        List<FileListModel.Entry> entries = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            entries.addAll(entries(String.format(Locale.US, "update-%02d.zip", i)));
+        }
+        entries.addAll(entries("folder-a", "folder-b"));
+        mModel.setFolderEntries(entries);
+        mAdapter.reset();
+        List<FileListModel.Entry> shuffled = new ArrayList<>(entries);
+        Collections.shuffle(shuffled, new Random(42));
+
+        for (int start = 0; start < shuffled.size(); start += 8) {
+            List<FileListModel.Entry> batch =
+                    shuffled.subList(start, Math.min(start + 8, shuffled.size()));
+            long[] keys = new long[batch.size()];
+            for (int i = 0; i < keys.length; i++) {
+                // Some files share a time, they are then sorted by name.
+                keys[i] = batch.get(i).mTitle.hashCode() % 7;
+            }
+            mModel.setSortKeys(FileListModel.SORT_BY_MODIFIED, batch, keys);
+            assertEquals(rows(mModel), mAdapter.mRows);
+        }
+
+        FileListModel sorted = new FileListModel();
+        sorted.setFolderEntries(entries);
+        sorted.setSortMode(FileListModel.SORT_BY_MODIFIED);
+        assertEquals(rows(sorted), rows(mModel));
+        assertEquals(0, mAdapter.mFullChanges);
+    }
+
+    @Test
+    public void setSortKeys_keepsSubtreeEntriesLast() {
+        mModel.setSortMode(FileListModel.SORT_BY_SIZE);
+        List<FileListModel.Entry> entries = entries("ota_a.zip", "ota_b.zip", "ota_c.zip");
+        mModel.setFolderEntries(entries);
+        mModel.setFilter("ota");
+        mModel.addSubtreeEntries(subtreeEntries("sub/ota_x.zip", "sub/ota_y.zip"));
+        mAdapter.reset();
+
+        mModel.setSortKeys(FileListModel.SORT_BY_SIZE, entries, new long[] {1, 3, 2});
+
+        assertRows("ota_b.zip", "ota_c.zip", "ota_a.zip", "sub/ota_x.zip", "sub/ota_y.zip");
+        assertEquals(0, mAdapter.mFullChanges);
+    }
+
+    @Test
+    public void setSortKeys_ignoresEntriesNoLongerListed() {
+        mModel.setSortMode(FileListModel.SORT_BY_SIZE);
+        List<FileListModel.Entry> entries = entries("a.zip", "b.zip");
+        mModel.setFolderEntries(entries);
+        mModel.applyFolderChanges(Collections.singleton(entries.get(1).mFile),
+                Collections.emptyList());
+        mAdapter.reset();
+
+        mModel.setSortKeys(FileListModel.SORT_BY_SIZE, entries.subList(1, 2), new long[] {5});
+
+        assertRows("a.zip");
+        assertEquals(0, mAdapter.mMoved);
+    }
+
+    @Test
+    public void getEntriesWithoutSortKey_skipsFoldersAndKeyedFiles() {
+        mModel.setSortMode(FileListModel.SORT_BY_BUILD_DATE);
+        List<FileListModel.Entry> entries = entries("a.zip", "b.zip", "folder");
+        mModel.setFolderEntries(entries);
+        mModel.setSortKeys(FileListModel.SORT_BY_BUILD_DATE, entries.subList(0, 1),
+                new long[] {1});
+
+        assertEquals(entries.subList(1, 2),
+                mModel.getEntriesWithoutSortKey(FileListModel.SORT_BY_BUILD_DATE));
+        assertEquals(entries.subList(0, 2),
+                mModel.getEntriesWithoutSortKey(FileListModel.SORT_BY_SIZE));
+    }
+
+    /** Assert the model shows {@code titles} and the adapter was told the same. */
+    private void assertRows(String... titles) {
+        List<String> shown = new ArrayList<>();
+        for (FileListModel.Entry entry : rows(mModel)) {
+            shown.add(entry.mTitle);
+        }
+        assertEquals(Arrays.asList(titles), shown);
+        assertEquals(rows(mModel), mAdapter.mRows);
+    }
+
+    private static List<FileListModel.Entry> rows(FileListModel model) {
+        List<FileListModel.Entry> rows = new ArrayList<>(model.size());
+        for (int i = 0; i < model.size(); i++) {
+            rows.add(model.get(i));
+        }
+        return rows;
+    }
+
+    private static List<FileListModel.Entry> entries(String... names) {
+        List<File> files = new ArrayList<>();
+        for (String name : names) {
+            files.add(new File(FOLDER, name));
+        }
+        return FileListModel.toEntries(files, null);
+    }
+
+    private static List<FileListModel.Entry> subtreeEntries(String... paths) {
+        List<File> files = new ArrayList<>();
+        for (String path : paths) {
+            files.add(new File(FOLDER, path));
+        }
+        return FileListModel.toEntries(files, FOLDER);
+    }
+
+    /**
+     * Applies the changes notified by the model to its own copy of the rows. The model notifies
+     * each change right after making it, so an inserted row is read from the model.
+     */
+    private static class RecordingAdapter extends RecyclerView.Adapter<RecyclerView.ViewHolder> {
+        final List<FileListModel.Entry> mRows = new ArrayList<>();
+        int mInserted;
+        int mRemoved;
+        int mMoved;
+        int mFullChanges;
+
+        RecordingAdapter(FileListModel model) {
+            registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+                @Override
+                public void onChanged() {
+                    mFullChanges++;
+                    mRows.clear();
+                    mRows.addAll(rows(model));
+                }
+
+                @Override
+                public void onItemRangeInserted(int positionStart, int itemCount) {
+                    mInserted += itemCount;
+                    for (int i = positionStart; i < positionStart + itemCount; i++) {
+                        mRows.add(i, model.get(i));
+                    }
+                }
+
+                @Override
+                public void onItemRangeRemoved(int positionStart, int itemCount) {
+                    mRemoved += itemCount;
+                    mRows.subList(positionStart, positionStart + itemCount).clear();
+                }
+
+                @Override
+                public void onItemRangeMoved(int fromPosition, int toPosition, int itemCount) {
+                    assertEquals(1, itemCount);
+                    mMoved++;
+                    mRows.add(toPosition, mRows.remove(fromPosition));
+                }
+            });
+        }
+
+        /** Forget the changes counted so far. */
+        void reset() {
+            mInserted = 0;
+            mRemoved = 0;
+            mMoved = 0;
+            mFullChanges = 0;
+        }
+
+        @Override
+        public RecyclerView.ViewHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void onBindViewHolder(RecyclerView.ViewHolder holder, int position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getItemCount() {
+            return mRows.size();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.systemupdater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/** Parses updates served by a {@link RangeHttpServer}. */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class HttpUpdateParserTest {
+    private static final String[] PROPERTIES = {
+            "FILE_HASH=lURPCIkIAjtMOyB/EjQcl8zDzqtD6Ta3tJef6G/+z2k=",
+            "FILE_SIZE=4096",
+            "METADATA_HASH=tBvj43QOB0Jn++JojcpVdbRLz0qdAuL+uTkSy7hokaw=",
+            "METADATA_SIZE=128",
+    };
+    private static final int PAYLOAD_SIZE = 4096;
+    // Puts the end of central directory record away from the end of the file.
+    private static final String COMMENT = "signed-by: test";
+
+    private RangeHttpServer mServer;
+    private File mCacheDir;
+    private byte[] mPayload;
+
+    @Before
+    public void setUp() throws IOException {
+        mServer = new RangeHttpServer();
+        mCacheDir = new File(InstrumentationRegistry.getTargetContext().getCacheDir(),
+                "HttpUpdateParserTest");
+        deleteRecursively(mCacheDir);
+        mCacheDir.mkdirs();
+        mPayload = new byte[PAYLOAD_SIZE];
+        for (int i = 0; i < mPayload.length; i++) {
+            mPayload[i] = (byte) (i * 31 + 7);
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+        deleteRecursively(mCacheDir);
+    }
+
+    @Test
+    public void parse_findsPayloadAndDeflatedProperties() throws IOException {
+        byte[] zip = buildZip(/* padding= */ 0, /* compressPayload= */ false);
+        mServer.setContent(zip, "v1");
+
+        UpdateParser.ParsedUpdate update =
+                HttpUpdateParser.parse(mServer.getUrl("ota.zip"), mCacheDir);
+
+        assertEquals(mServer.getUrl("ota.zip"), update.mUrl);
+        assertEquals(indexOf(zip, mPayload), update.mOffset);
+        assertEquals(PAYLOAD_SIZE, update.mSize);
+        assertArrayEquals(PROPERTIES, update.mProps);
+    }
+
+    @Test
+    public void parse_findsPayloadInZip64() throws IOException {
+        byte[] zip = buildZip64();
+        mServer.setContent(zip, "v1");
+
+        UpdateParser.ParsedUpdate update =
+                HttpUpdateParser.parse(mServer.getUrl("ota.zip"), mCacheDir);
+
+        assertEquals(indexOf(zip, mPayload), update.mOffset);
+        assertEquals(PAYLOAD_SIZE, update.mSize);
+        assertArrayEquals(PROPERTIES, update.mProps);
+    }
+
+    @Test
+    public void parse_rejectsCompressedPayload() {
+        mServer.setContent(buildZip(/* padding= */ 0, /* compressPayload= */ true), "v1");
+
+        try {
+            HttpUpdateParser.parse(mServer.getUrl("ota.zip"), mCacheDir);
+            fail("A compressed payload can't be streamed");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void parse_reusesIndexUntilETagChanges() throws IOException {
+        String url = mServer.getUrl("ota.zip");
+        mServer.setContent(buildZip(/* padding= */ 0, /* compressPayload= */ false), "v1");
+        UpdateParser.ParsedUpdate first = HttpUpdateParser.parse(url, mCacheDir);
+        int rangeRequests = mServer.getRangeRequests();
+
+        UpdateParser.ParsedUpdate cached = HttpUpdateParser.parse(url, mCacheDir);
+        assertEquals(rangeRequests, mServer.getRangeRequests());
+        assertEquals(first.mOffset, cached.mOffset);
+        assertArrayEquals(first.mProps, cached.mProps);
+
+        // A new build at the same url, with the payload further into the file.
+        byte[] zip = buildZip(/* padding= */ 1000, /* compressPayload= */ false);
+        mServer.setContent(zip, "v2");
+        UpdateParser.ParsedUpdate updated = HttpUpdateParser.parse(url, mCacheDir);
+        assertEquals(indexOf(zip, mPayload), updated.mOffset);
+        assertTrue(mServer.getRangeRequests() > rangeRequests);
+        assertEquals(3, mServer.getHeadRequests());
+    }
+
+    /**
+     * Returns an update zip with the properties deflated and an entry of {@code padding} bytes
+     * before the payload.
+     */
+    private byte[] buildZip(int padding, boolean compressPayload) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            zip.setComment(COMMENT);
+            zip.putNextEntry(new ZipEntry("META-INF/com/android/metadata"));
+            zip.write(new byte[padding]);
+            zip.closeEntry();
+
+            ZipEntry properties = new ZipEntry("payload_properties.txt");
+            properties.setMethod(ZipEntry.DEFLATED);
+            zip.putNextEntry(properties);
+            zip.write(getPropertiesBytes());
+            zip.closeEntry();
+
+            ZipEntry payload = new ZipEntry("payload.bin");
+            if (!compressPayload) {
+                setStored(payload, mPayload);
+            }
+            zip.putNextEntry(payload);
+            zip.write(mPayload);
+            zip.closeEntry();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Returns an update zip whose end of central directory defers to the zip64 one, and whose
+     * payload offset and sizes are only in its zip64 extra field.
+     */
+    private byte[] buildZip64() {
+        byte[] properties = getPropertiesBytes();
+        byte[] propertiesName = "payload_properties.txt".getBytes(StandardCharsets.UTF_8);
+        byte[] payloadName = "payload.bin".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer zip = ByteBuffer.allocate(PAYLOAD_SIZE + 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        int propertiesOffset = zip.position();
+        putLocalHeader(zip, propertiesName, properties);
+        int payloadOffset = zip.position();
+        putLocalHeader(zip, payloadName, mPayload);
+
+        int cdOffset = zip.position();
+        putCentralHeader(zip, propertiesName, properties, propertiesOffset, false);
+        putCentralHeader(zip, payloadName, mPayload, payloadOffset, true);
+        int cdSize = zip.position() - cdOffset;
+
+        int zip64EocdOffset = zip.position();
+        zip.putInt(0x06064b50).putLong(44).putShort((short) 45).putShort((short) 45);
+        zip.putInt(0).putInt(0).putLong(2).putLong(2).putLong(cdSize).putLong(cdOffset);
+        zip.putInt(0x07064b50).putInt(0).putLong(zip64EocdOffset).putInt(1);
+        zip.putInt(0x06054b50).putShort((short) 0).putShort((short) 0);
+        zip.putShort((short) 0xffff).putShort((short) 0xffff);
+        zip.putInt(0xffffffff).putInt(0xffffffff).putShort((short) 0);
+        return Arrays.copyOf(zip.array(), zip.position());
+    }
+
+    private static void putLocalHeader(ByteBuffer zip, byte[] name, byte[] data) {
+        zip.putInt(0x04034b50).putShort((short) 45).putShort((short) 0).putShort((short) 0);
+        zip.putShort((short) 0).putShort((short) 0).putInt(crc(data));
+        zip.putInt(data.length).putInt(data.length);
+        zip.putShort((short) name.length).putShort((short) 0).put(name).put(data);
+    }
+
+    private static void putCentralHeader(ByteBuffer zip, byte[] name, byte[] data,
+            int localHeaderOffset, boolean zip64) {
+        zip.putInt(0x02014b50).putShort((short) 45).putShort((short) 45);
+        zip.putShort((short) 0).putShort((short) 0).putShort((short) 0).putShort((short) 0);
+        zip.putInt(crc(data));
+        zip.putInt(zip64 ? 0xffffffff : data.length).putInt(zip64 ? 0xffffffff : data.length);
+        zip.putShort((short) name.length).putShort((short) (zip64 ? 28 : 0));
+        zip.putShort((short) 0).putShort((short) 0).putShort((short) 0).putInt(0);
+        zip.putInt(zip64 ? 0xffffffff : localHeaderOffset).put(name);
+        if (zip64) {
+            zip.putShort((short) 0x0001).putShort((short) 24);
+            zip.putLong(data.length).putLong(data.length).putLong(localHeaderOffset);
+        }
+    }
+
+    private static byte[] getPropertiesBytes() {
+        return (String.join("\n", PROPERTIES) + "\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void setStored(ZipEntry entry, byte[] data) {
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(data.length);
+        entry.setCompressedSize(data.length);
+        entry.setCrc(crc(data) & 0xffffffffL);
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    private static int indexOf(byte[] haystack, byte[] needle) {
+        search:
+        for (int i = 0; i + needle.length <= haystack.length; i++) {
+            for (int j = 0; j < needle.length; j++) {
+                if (haystack[i + j] != needle[j]) {
+                    continue search;
+                }
+            }
+            return i;
+        }
+        throw new AssertionError("Payload not found in the zip");
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.systemupdater;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A minimal HTTP server on the loopback interface standing in for an update server. It serves
+ * one file, answering HEAD requests and single range GET requests, one request per connection.
+ */
+class RangeHttpServer implements Closeable {
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d+)");
+
+    private final ServerSocket mServerSocket;
+    private final Thread mThread;
+    private final AtomicInteger mHeadRequests = new AtomicInteger();
+    private final AtomicInteger mRangeRequests = new AtomicInteger();
+    private volatile byte[] mContent = new byte[0];
+    private volatile String mETag;
+
+    RangeHttpServer() throws IOException {
+        mServerSocket = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+        mThread = new Thread(this::serve, "RangeHttpServer");
+        mThread.start();
+    }
+
+    /** Serve {@code content}, with {@code eTag} as its ETag if not null. */
+    void setContent(byte[] content, String eTag) {
+        mContent = content;
+        mETag = eTag;
+    }
+
+    /** Returns the url of the file served as {@code name}. */
+    String getUrl(String name) {
+        return String.format(Locale.US, "http://localhost:%d/%s",
+                mServerSocket.getLocalPort(), name);
+    }
+
+    /** Returns the number of HEAD requests received. */
+    int getHeadRequests() {
+        return mHeadRequests.get();
+    }
+
+    /** Returns the number of range requests received. */
+    int getRangeRequests() {
+        return mRangeRequests.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocket.close();
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve() {
+        while (!mServerSocket.isClosed()) {
+            try (Socket socket = mServerSocket.accept()) {
+                handle(socket);
+            } catch (IOException e) {
+                // Closed, or a client gave up on a request.
+            }
+        }
+    }
+
+    private void handle(Socket socket) throws IOException {
+        BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.ISO_8859_1));
+        String requestLine = in.readLine();
+        if (requestLine == null) {
+            return;
+        }
+        String range = null;
+        String line;
+        while ((line = in.readLine()) != null && !line.isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                range = line.substring(colon + 1).trim();
+            }
+        }
+
+        byte[] content = mContent;
+        String eTag = mETag;
+        StringBuilder headers = new StringBuilder();
+        byte[] body = new byte[0];
+        if (requestLine.startsWith("HEAD ")) {
+            mHeadRequests.incrementAndGet();
+            headers.append("HTTP/1.1 200 OK\r\n");
+            headers.append("Content-Length: ").append(content.length).append("\r\n");
+        } else if (range != null) {
+            mRangeRequests.incrementAndGet();
+            Matcher matcher = RANGE.matcher(range);
+            long start = matcher.matches() ? Long.parseLong(matcher.group(1)) : -1;
+            long end = matcher.matches() ? Long.parseLong(matcher.group(2)) : -1;
+            if (start < 0 || end < start || end >= content.length) {
+                headers.append("HTTP/1.1 416 Range Not Satisfiable\r\n");
+                headers.append("Content-Length: 0\r\n");
+            } else {
+                body = new byte[(int) (end - start + 1)];
+                System.arraycopy(content, (int) start, body, 0, body.length);
+                headers.append("HTTP/1.1 206 Partial Content\r\n");
+                headers.append(String.format(Locale.US, "Content-Range: bytes %d-%d/%d\r\n",
+                        start, end, content.length));
+                headers.append("Content-Length: ").append(body.length).append("\r\n");
+            }
+        } else {
+            body = content;
+            headers.append("HTTP/1.1 200 OK\r\n");
+            headers.append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        if (eTag != null) {
+            headers.append("ETag: \"").append(eTag).append("\"\r\n");
+        }
+        headers.append("Accept-Ranges: bytes\r\n");
+        headers.append("Connection: close\r\n\r\n");
+
+        OutputStream out = socket.getOutputStream();
+        out.write(headers.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.write(body);
+        out.flush();
+    }
+}
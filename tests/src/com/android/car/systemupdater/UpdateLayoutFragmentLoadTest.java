@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.systemupdater;
+
+import static com.android.car.systemupdater.UpdateLayoutFragment.EXTRA_RESUME_UPDATE;
+import static com.android.car.systemupdater.UpdateLayoutFragment.REBOOT_REASON;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.Manifest;
+import android.content.Intent;
+import android.os.UpdateEngine;
+import android.util.Log;
+import android.widget.ProgressBar;
+import android.widget.TextView;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.rule.ActivityTestRule;
+import androidx.test.rule.GrantPermissionRule;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Replays update engine callbacks to {@link UpdateLayoutFragment} and fails when the cost of
+ * handling them regresses.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class UpdateLayoutFragmentLoadTest {
+    private static final String TAG = "UpdateLayoutFragmentLoadTest";
+
+    // The budgets of the callback path. Only raise them with the change that needs it.
+    private static final double MAX_MEAN_CALLBACK_MICROS = 100;
+    private static final double MAX_ALLOCATIONS_PER_CALLBACK = 0.5;
+    private static final double MAX_NOTIFICATIONS_PER_SECOND = 1;
+
+    private static final int FLOOD_CALLBACKS = 10000;
+    private static final int FLOOD_RATE = 5000;
+    private static final int RECORDED_RATE = 200;
+
+    /** Logged by the fragment during an installation, trimmed to one line per percent. */
+    private static final String RECORDED_LOG = ""
+            + "D UpdateLayoutFragment: onStatusUpdate 0, Percent 0.00\n"
+            + "D UpdateLayoutFragment: onStatusUpdate 1, Percent 0.00\n"
+            + "D UpdateLayoutFragment: onStatusUpdate 2, Percent 0.00\n"
+            + "D UpdateLayoutFragment: onStatusUpdate 3, Percent 0.00\n"
+            + "D UpdateLayoutFragment: onStatusUpdate 3, Percent 0.25\n"
+            + "D UpdateLayoutFragment: onStatusUpdate 3, Percent 0.50\n"
+            + "D UpdateLayoutFragment: onStatusUpdate 3, Percent 0.75\n"
+            + "D UpdateLayoutFragment: onStatusUpdate 3, Percent 1.00\n"
+            + "D UpdateLayoutFragment: onStatusUpdate 4, Percent 0.00\n"
+            + "D UpdateLayoutFragment: onStatusUpdate 5, Percent 0.50\n"
+            + "D UpdateLayoutFragment: onStatusUpdate 5, Percent 1.00\n"
+            + "D UpdateLayoutFragment: onStatusUpdate 6, Percent 0.00\n"
+            + "W UpdateLayoutFragment: onPayloadApplicationComplete 0\n"
+            + "D UpdateLayoutFragment: onStatusUpdate 6, Percent 0.00\n";
+
+    @Rule
+    public final GrantPermissionRule mPermissionRule = GrantPermissionRule.grant(
+            Manifest.permission.READ_EXTERNAL_STORAGE,
+            Manifest.permission.WRITE_EXTERNAL_STORAGE);
+
+    @Rule
+    public final ActivityTestRule<SystemUpdaterActivity> mActivityRule =
+            new ActivityTestRule<>(SystemUpdaterActivity.class, false, false);
+
+    private final FakeUpdateServices mServices = new FakeUpdateServices();
+
+    @Before
+    public void setUp() throws InterruptedException {
+        UpdateLayoutFragment.sUpdateServicesFactory = context -> mServices;
+        // Rejoining an installation binds to the update engine right away.
+        mActivityRule.launchActivity(new Intent().putExtra(EXTRA_RESUME_UPDATE, true));
+        mServices.awaitBound();
+    }
+
+    @After
+    public void tearDown() {
+        UpdateLayoutFragment.sUpdateServicesFactory = DeviceUpdateServices::new;
+    }
+
+    @Test
+    public void progressFlood_staysWithinBudget() throws InterruptedException {
+        FakeUpdateServices.Measurements measurements =
+                mServices.replay(FakeUpdateServices.downloading(FLOOD_CALLBACKS), FLOOD_RATE);
+        Log.i(TAG, "Progress flood: " + measurements);
+
+        assertTrue(measurements.toString(),
+                measurements.getMeanThreadMicros() <= MAX_MEAN_CALLBACK_MICROS);
+        assertTrue(measurements.toString(),
+                measurements.getAllocationsPerCallback() <= MAX_ALLOCATIONS_PER_CALLBACK);
+        assertTrue(measurements.toString(),
+                measurements.getNotificationsPerSecond() <= MAX_NOTIFICATIONS_PER_SECOND);
+        assertEquals(100, getProgressBar().getProgress());
+    }
+
+    @Test
+    public void recordedInstallation_rebootsOnce() throws InterruptedException {
+        int cancelled = mServices.getCancelledNotifications();
+        FakeUpdateServices.Measurements measurements =
+                mServices.replay(FakeUpdateServices.parseLog(RECORDED_LOG), RECORDED_RATE);
+        Log.i(TAG, "Recorded installation: " + measurements);
+
+        assertEquals(Collections.singletonList(REBOOT_REASON), mServices.getReboots());
+        assertEquals(0, measurements.getNotifications());
+        assertEquals(cancelled + 1, mServices.getCancelledNotifications());
+        assertEquals(1, mServices.getStagedPayloadDeletions());
+        assertEquals(getString(R.string.install_success), getTitle());
+    }
+
+    @Test
+    public void repeatedNeedReboot_rebootsOnce() throws InterruptedException {
+        List<FakeUpdateServices.Event> events = new ArrayList<>();
+        for (int i = 0; i < FLOOD_CALLBACKS; i++) {
+            events.add(FakeUpdateServices.Event.status(
+                    UpdateEngine.UpdateStatusConstants.UPDATED_NEED_REBOOT, 0));
+        }
+        FakeUpdateServices.Measurements measurements = mServices.replay(events, FLOOD_RATE);
+        Log.i(TAG, "Repeated reboot: " + measurements);
+
+        assertEquals(Collections.singletonList(REBOOT_REASON), mServices.getReboots());
+        assertTrue(measurements.toString(),
+                measurements.getMeanThreadMicros() <= MAX_MEAN_CALLBACK_MICROS);
+    }
+
+    @Test
+    public void error_showsFailureWithoutReboot() throws InterruptedException {
+        List<FakeUpdateServices.Event> events = FakeUpdateServices.downloading(FLOOD_CALLBACKS);
+        events.add(FakeUpdateServices.Event.complete(
+                UpdateEngine.ErrorCodeConstants.PAYLOAD_HASH_MISMATCH_ERROR));
+        int cancelled = mServices.getCancelledNotifications();
+        mServices.replay(events, FLOOD_RATE);
+
+        assertTrue(mServices.getReboots().isEmpty());
+        assertEquals(cancelled + 1, mServices.getCancelledNotifications());
+        assertEquals(1, mServices.getStagedPayloadDeletions());
+        assertEquals(getString(R.string.install_failed), getTitle());
+    }
+
+    private ProgressBar getProgressBar() {
+        return mActivityRule.getActivity().findViewById(R.id.progress_bar);
+    }
+
+    private String getTitle() {
+        TextView title =
+                mActivityRule.getActivity().findViewById(R.id.system_update_auto_content_title);
+        return title.getText().toString();
+    }
+
+    private String getString(int resId) {
+        return mActivityRule.getActivity().getString(resId);
+    }
+}
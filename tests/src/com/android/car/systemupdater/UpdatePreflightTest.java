@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.car.systemupdater;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.content.Context;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/** Reads the manifest of payloads built in the test. */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class UpdatePreflightTest {
+    private static final String[] PROPERTIES = {"FILE_SIZE=1024"};
+    // Larger than an int, as the system partition of a real update is.
+    private static final long SYSTEM_SIZE = 3L * 1024 * 1024 * 1024 + 4096;
+    private static final long VENDOR_SIZE = 512 * 1024 * 1024;
+    // Stands in for the data and signatures following the manifest.
+    private static final int PAYLOAD_DATA_SIZE = 256;
+
+    // Field numbers from update_engine's update_metadata.proto.
+    private static final int MANIFEST_BLOCK_SIZE = 3;
+    private static final int MANIFEST_PARTITIONS = 13;
+    private static final int MANIFEST_MAX_TIMESTAMP = 14;
+    private static final int PARTITION_NAME = 1;
+    private static final int PARTITION_NEW_INFO = 7;
+    private static final int PARTITION_OPERATIONS = 8;
+    private static final int PARTITION_INFO_SIZE = 1;
+    private static final int PARTITION_INFO_HASH = 2;
+    private static final int OPERATION_TYPE = 1;
+    private static final int OPERATION_DATA_OFFSET = 2;
+
+    private static final int WIRETYPE_VARINT = 0;
+    private static final int WIRETYPE_FIXED64 = 1;
+    private static final int WIRETYPE_LENGTH_DELIMITED = 2;
+    private static final int WIRETYPE_FIXED32 = 5;
+
+    private Context mContext;
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mDir = new File(mContext.getCacheDir(), "UpdatePreflightTest");
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDir.delete();
+    }
+
+    @Test
+    public void readPartitions_version1Header() throws IOException {
+        UpdateParser.ParsedUpdate update = writePayload(payload(1, buildManifest()));
+
+        assertPartitions(UpdatePreflight.readPartitions(update));
+    }
+
+    @Test
+    public void readPartitions_version2Header() throws IOException {
+        UpdateParser.ParsedUpdate update = writePayload(payload(2, buildManifest()));
+
+        assertPartitions(UpdatePreflight.readPartitions(update));
+    }
+
+    @Test
+    public void readPartitions_atOffsetInPackage() throws IOException {
+        byte[] payload = payload(2, buildManifest());
+        byte[] zip = new byte[100 + payload.length];
+        System.arraycopy(payload, 0, zip, 100, payload.length);
+        File file = writeFile(zip);
+
+        assertPartitions(UpdatePreflight.readPartitions(
+                new UpdateParser.ParsedUpdate(file, 100, payload.length, PROPERTIES)));
+    }
+
+    @Test
+    public void readPartitions_truncatedVarint() throws IOException {
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        writeTag(manifest, MANIFEST_BLOCK_SIZE, WIRETYPE_VARINT);
+        // A continuation bit on the last byte of the manifest.
+        manifest.write(0x80);
+        UpdateParser.ParsedUpdate update = writePayload(payload(2, manifest.toByteArray()));
+
+        assertReadFails(update);
+    }
+
+    @Test
+    public void readPartitions_malformedVarint() throws IOException {
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        writeTag(manifest, MANIFEST_BLOCK_SIZE, WIRETYPE_VARINT);
+        // More than the ten bytes a 64-bit varint takes.
+        for (int i = 0; i < 11; i++) {
+            manifest.write(0xff);
+        }
+        manifest.write(0x01);
+        UpdateParser.ParsedUpdate update = writePayload(payload(2, manifest.toByteArray()));
+
+        assertReadFails(update);
+    }
+
+    @Test
+    public void readPartitions_truncatedPartition() throws IOException {
+        byte[] manifest = buildManifest();
+        // Cut the last partition short of its declared length.
+        UpdateParser.ParsedUpdate update =
+                writePayload(payload(2, Arrays.copyOf(manifest, manifest.length - 3)));
+
+        assertReadFails(update);
+    }
+
+    @Test
+    public void readPartitions_partitionWithoutName() throws IOException {
+        ByteArrayOutputStream partition = new ByteArrayOutputStream();
+        writeMessage(partition, PARTITION_NEW_INFO, partitionInfo(VENDOR_SIZE));
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        writeMessage(manifest, MANIFEST_PARTITIONS, partition.toByteArray());
+        UpdateParser.ParsedUpdate update = writePayload(payload(2, manifest.toByteArray()));
+
+        assertReadFails(update);
+    }
+
+    @Test
+    public void readPartitions_notPayload() throws IOException {
+        byte[] data = new byte[1024];
+        Arrays.fill(data, (byte) 'P');
+
+        assertNull(UpdatePreflight.readPartitions(writePayload(data)));
+    }
+
+    @Test
+    public void readPartitions_manifestLargerThanPayload() throws IOException {
+        byte[] payload = payload(2, buildManifest());
+        ByteBuffer.wrap(payload).putLong(12, payload.length + 1L);
+
+        assertNull(UpdatePreflight.readPartitions(writePayload(payload)));
+    }
+
+    @Test
+    public void check_notPayload_isInvalid() throws IOException {
+        byte[] data = new byte[1024];
+        Arrays.fill(data, (byte) 'P');
+
+        UpdatePreflight.Result result = UpdatePreflight.check(mContext, writePayload(data));
+
+        assertFalse(result.toString(), result.mGo);
+        assertEquals(R.string.preflight_invalid_payload, result.mReason);
+    }
+
+    @Test
+    public void check_truncatedManifest_doesNotBlockInstall() throws IOException {
+        byte[] manifest = buildManifest();
+        UpdateParser.ParsedUpdate update =
+                writePayload(payload(2, Arrays.copyOf(manifest, manifest.length - 3)));
+
+        UpdatePreflight.Result result = UpdatePreflight.check(mContext, update);
+
+        assertTrue(result.toString(), result.mGo);
+        assertEquals(R.string.preflight_unavailable, result.mReason);
+        assertFalse(result.hasEstimate());
+    }
+
+    private static void assertPartitions(List<UpdatePreflight.Partition> partitions) {
+        assertEquals(2, partitions.size());
+        assertEquals("system", partitions.get(0).mName);
+        assertEquals(SYSTEM_SIZE, partitions.get(0).mNewSize);
+        assertEquals(3, partitions.get(0).mOperations);
+        assertEquals("vendor", partitions.get(1).mName);
+        assertEquals(VENDOR_SIZE, partitions.get(1).mNewSize);
+        assertEquals(1, partitions.get(1).mOperations);
+    }
+
+    private static void assertReadFails(UpdateParser.ParsedUpdate update) {
+        try {
+            UpdatePreflight.readPartitions(update);
+            fail("The manifest is not valid");
+        } catch (IOException expected) {
+        }
+    }
+
+    private UpdateParser.ParsedUpdate writePayload(byte[] payload) throws IOException {
+        return new UpdateParser.ParsedUpdate(writeFile(payload), 0, payload.length, PROPERTIES);
+    }
+
+    private File writeFile(byte[] data) throws IOException {
+        File file = File.createTempFile("payload", ".bin", mDir);
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(data);
+        }
+        return file;
+    }
+
+    /** Returns a payload of {@code version} with {@code manifest}, followed by its data. */
+    private static byte[] payload(int version, byte[] manifest) {
+        int headerSize = version >= 2 ? 24 : 20;
+        ByteBuffer payload = ByteBuffer.allocate(headerSize + manifest.length + PAYLOAD_DATA_SIZE);
+        payload.put("CrAU".getBytes(StandardCharsets.US_ASCII));
+        payload.putLong(version);
+        payload.putLong(manifest.length);
+        if (version >= 2) {
+            // The size of the metadata signature, which follows the manifest.
+            payload.putInt(PAYLOAD_DATA_SIZE / 2);
+        }
+        payload.put(manifest);
+        return payload.array();
+    }
+
+    /**
+     * Returns a manifest updating a large system partition with three operations and a vendor
+     * partition with one, among fields of every wire type that are skipped.
+     */
+    private static byte[] buildManifest() throws IOException {
+        ByteArrayOutputStream manifest = new ByteArrayOutputStream();
+        writeTag(manifest, MANIFEST_BLOCK_SIZE, WIRETYPE_VARINT);
+        writeVarint(manifest, 4096);
+        writeMessage(manifest, MANIFEST_PARTITIONS, partition("system", SYSTEM_SIZE, 3));
+        writeTag(manifest, MANIFEST_MAX_TIMESTAMP, WIRETYPE_FIXED64);
+        manifest.write(new byte[8]);
+        writeTag(manifest, 99, WIRETYPE_FIXED32);
+        manifest.write(new byte[4]);
+        writeMessage(manifest, MANIFEST_PARTITIONS, partition("vendor", VENDOR_SIZE, 1));
+        return manifest.toByteArray();
+    }
+
+    private static byte[] partition(String name, long size, int operations) throws IOException {
+        ByteArrayOutputStream partition = new ByteArrayOutputStream();
+        writeMessage(partition, PARTITION_NAME, name.getBytes(StandardCharsets.UTF_8));
+        for (int i = 0; i < operations; i++) {
+            ByteArrayOutputStream operation = new ByteArrayOutputStream();
+            writeTag(operation, OPERATION_TYPE, WIRETYPE_VARINT);
+            writeVarint(operation, 0);
+            writeTag(operation, OPERATION_DATA_OFFSET, WIRETYPE_VARINT);
+            writeVarint(operation, i * 4096L);
+            writeMessage(partition, PARTITION_OPERATIONS, operation.toByteArray());
+        }
+        writeMessage(partition, PARTITION_NEW_INFO, partitionInfo(size));
+        return partition.toByteArray();
+    }
+
+    private static byte[] partitionInfo(long size) throws IOException {
+        ByteArrayOutputStream info = new ByteArrayOutputStream();
+        writeTag(info, PARTITION_INFO_SIZE, WIRETYPE_VARINT);
+        writeVarint(info, size);
+        writeMessage(info, PARTITION_INFO_HASH, new byte[32]);
+        return info.toByteArray();
+    }
+
+    private static void writeMessage(ByteArrayOutputStream out, int field, byte[] message)
+            throws IOException {
+        writeTag(out, field, WIRETYPE_LENGTH_DELIMITED);
+        writeVarint(out, message.length);
+        out.write(message);
+    }
+
+    private static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+        writeVarint(out, (field << 3) | wireType);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}